@@ -0,0 +1,563 @@
+/**
+ * Async DNS Resolver
+ *
+ * Non-blocking resolver built on a selector-driven DatagramChannel. A single
+ * event loop thread sends queries, matches responses by query ID and drives a
+ * hashed timer wheel for retransmission timeouts, so thousands of lookups can
+ * be outstanding without a thread each. Responses that come back truncated
+ * are retried over pooled DNS-over-TCP connections. Queries advertise an EDNS0
+ * UDP payload size so that most large answers fit in a single datagram.
+ *
+ * Query IDs are drawn at random, and a response is only accepted from the
+ * upstream the query went to and if its question is the one asked, so a
+ * reply forged by someone off the path has to guess the ID.
+ *
+ * Given several upstream servers, each query goes to the one with the lowest
+ * smoothed RTT among those that are healthy, and fails over to the next best
+ * when it times out. With a hedge percentile set, a query that the first
+ * server has not answered within that percentile of its recent RTTs is also
+ * sent to the second best, and whichever answers first wins.
+ *
+ * Retransmission timeouts adapt to each upstream (RFC 6298 SRTT/RTTVAR) and
+ * back off exponentially with jitter, from the upstream's RTO up to the
+ * configured timeout. A lookup also fails once its total deadline passes,
+ * however many retries it has left.
+ *
+ *     AsyncDnsResolver resolver = new AsyncDnsResolver(server, 53, 5000, 3);
+ *     resolver.resolve("example.com", DnsRecord.TYPE_MX).thenAccept(...);
+ *
+ * Futures are completed on the event loop thread. Callbacks that block or do
+ * real work should be attached with the *Async variants.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class AsyncDnsResolver implements Closeable {
+
+    // header + longest possible name + QTYPE/QCLASS
+    private static final int MAX_QUERY_LENGTH = DnsCodec.HEADER_LENGTH + 255 + 4 + DnsCodec.OPT_LENGTH;
+
+    // TCP fallback pool: connections per upstream, and queries on each before another is opened
+    private static final int TCP_CONNECTIONS = 2;
+    private static final int TCP_PIPELINED = 64;
+
+    // Timer wheel resolution and size (one revolution is about 5 seconds)
+    private static final long TICK_MILLIS = 10;
+    private static final int WHEEL_SIZE = 512;
+
+    // Never hedge sooner than this, whatever the percentile says
+    private static final long MIN_HEDGE_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static class Query {
+        private final String name;
+        private final short qType;
+        private final CompletableFuture<DnsAnswer> future = new CompletableFuture<DnsAnswer>();
+        private long startTime;
+        private long deadline;
+        private short queryId;
+        private int retries;
+        private boolean edns = true;
+        private HashedTimerWheel.Timeout timeout;
+
+        // Upstream of the latest transmission and how often it was sent there
+        private DnsUpstream upstream;
+        private int sends;
+        private long sentAt;
+
+        // Second upstream raced against the first, if any
+        private DnsUpstream hedge;
+        private long hedgeSentAt;
+        private HashedTimerWheel.Timeout hedgeTimeout;
+
+        private Query(String name, short qType) {
+            this.name = name;
+            this.qType = qType;
+        }
+    }
+
+    private final List<DnsUpstream> upstreams;
+    private final long timeoutNanos; // ceiling for a single attempt
+    private final int maxRetries;
+    private volatile long deadlineNanos;
+    private final int udpPayloadSize;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final Thread loopThread;
+    private volatile boolean running = true;
+
+    // Lookups handed over by callers, drained by the event loop
+    private final Queue<Query> submissions = new ConcurrentLinkedQueue<Query>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    // Event loop state, only touched from the loop thread
+    private final HashedTimerWheel timers = new HashedTimerWheel(TICK_MILLIS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+    private final Query[] inFlight = new Query[1 << 16];
+    private int inFlightCount;
+    private final SecureRandom ids = new SecureRandom();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_QUERY_LENGTH);
+    private final ByteBuffer receiveBuffer;
+    private final DnsCodec codec = new DnsCodec();
+
+    private final DnsTcpPool tcpPool;
+    private volatile DnsCache cache;
+    private volatile double hedgePercentile;
+    private final DnsRetryStats stats = new DnsRetryStats();
+
+    public AsyncDnsResolver(InetAddress server, int port, int timeoutMillis, int maxRetries) throws IOException {
+        this(server, port, timeoutMillis, maxRetries, DnsCodec.DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    /**
+     * Creates a resolver that advertises udpPayloadSize through EDNS0 and
+     * sizes its receive buffer to match. A size of 0 sends plain queries.
+     */
+    public AsyncDnsResolver(InetAddress server, int port, int timeoutMillis, int maxRetries, int udpPayloadSize)
+            throws IOException {
+        this(Collections.singletonList(new InetSocketAddress(server, port)), timeoutMillis, maxRetries,
+                udpPayloadSize);
+    }
+
+    /**
+     * Creates a resolver that spreads queries over the given upstream servers,
+     * preferring whichever currently answers fastest.
+     */
+    public AsyncDnsResolver(List<InetSocketAddress> servers, int timeoutMillis, int maxRetries, int udpPayloadSize)
+            throws IOException {
+        if (servers.isEmpty()) {
+            throw new IllegalArgumentException("No upstream servers");
+        }
+        this.upstreams = new ArrayList<DnsUpstream>();
+        for (InetSocketAddress server : servers) {
+            upstreams.add(new DnsUpstream(server));
+        }
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxRetries = maxRetries;
+        this.deadlineNanos = timeoutNanos * maxRetries;
+        this.udpPayloadSize = udpPayloadSize;
+        this.receiveBuffer = ByteBuffer.allocateDirect(Math.max(DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE, udpPayloadSize));
+        this.tcpPool = new DnsTcpPool(TCP_CONNECTIONS, TCP_PIPELINED, timeoutMillis);
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking(false);
+        channel.bind(null);
+        selector = Selector.open();
+        channel.register(selector, SelectionKey.OP_READ);
+
+        loopThread = new Thread(this::eventLoop, "dns-async-resolver");
+        loopThread.setDaemon(true);
+        loopThread.start();
+    }
+
+    public void setCache(DnsCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Races the two best upstreams: once a query has gone unanswered for the
+     * given percentile (0-100) of its server's recent RTTs, it is also sent to
+     * the next best one. 0 turns hedging off, which is the default.
+     */
+    public void setHedgePercentile(double hedgePercentile) {
+        if (hedgePercentile < 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("Hedge percentile must be between 0 and 100");
+        }
+        this.hedgePercentile = hedgePercentile;
+    }
+
+    /**
+     * Limits the total time a lookup may take across all of its retries.
+     * Defaults to the timeout times the maximum number of retries.
+     */
+    public void setDeadline(int deadlineMillis) {
+        this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    public DnsRetryStats getStats() {
+        return stats;
+    }
+
+    public List<DnsUpstream> getUpstreams() {
+        return Collections.unmodifiableList(upstreams);
+    }
+
+    /**
+     * Starts resolving a name. The future completes with the answer once a
+     * response arrives (whatever its RCODE), or exceptionally with a
+     * SocketTimeoutException once every retry has timed out.
+     */
+    public CompletableFuture<DnsAnswer> resolve(String name, short qType) {
+        DnsCache cache = this.cache;
+        if (cache != null) {
+            DnsResponse cached = cache.get(name, qType);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(new DnsAnswer(name, qType, cached, 0, 0, true));
+            }
+        }
+
+        Query query = new Query(name, qType);
+        if (!running) {
+            query.future.completeExceptionally(new IOException("Resolver is closed"));
+            return query.future;
+        }
+
+        submissions.add(query);
+
+        // lost a race with close(), the loop may already have drained the queue
+        if (!running && submissions.remove(query)) {
+            query.future.completeExceptionally(new IOException("Resolver is closed"));
+            return query.future;
+        }
+
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+        return query.future;
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            loopThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void eventLoop() {
+        try {
+            while (running) {
+                // reset before draining so a submission racing with it still wakes the next select
+                wakeupPending.set(false);
+                drainSubmissions();
+
+                long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(timers.nanosUntilNextTick(System.nanoTime())));
+                selector.select(waitMillis);
+                selector.selectedKeys().clear();
+
+                readResponses();
+                timers.advance(System.nanoTime());
+            }
+        } catch (IOException e) {
+            Log.error("Resolver event loop failed: {}", e);
+        } finally {
+            shutdown();
+        }
+    }
+
+    private void drainSubmissions() {
+        Query query;
+        while ((query = submissions.poll()) != null) {
+            if (inFlightCount == inFlight.length) {
+                query.future.completeExceptionally(new IOException("Too many queries in flight"));
+                continue;
+            }
+
+            // a name that cannot be encoded fails now rather than after every retry timed out
+            try {
+                DnsCodec.checkName(query.name);
+            } catch (IllegalArgumentException e) {
+                query.future.completeExceptionally(new IOException("Cannot query " + query.name + ": " + e.getMessage()));
+                continue;
+            }
+
+            // unpredictable IDs, so that an off-path sender cannot guess one to forge a reply
+            int id = ids.nextInt(1 << 16);
+            while (inFlight[id] != null) {
+                id = (id + 1) & 0xffff;
+            }
+            query.queryId = (short) id;
+
+            inFlight[query.queryId & 0xffff] = query;
+            inFlightCount++;
+            query.startTime = System.nanoTime();
+            query.deadline = query.startTime + deadlineNanos;
+            stats.recordLookup();
+            transmit(query, selectUpstream(null));
+        }
+    }
+
+    private void transmit(Query query, DnsUpstream upstream) {
+        if (upstream != query.upstream) {
+            query.upstream = upstream;
+            query.sends = 0;
+        }
+        query.sends++;
+        query.sentAt = System.nanoTime();
+
+        long timeout = DnsUpstream.backoff(upstream.rto(), query.retries, timeoutNanos);
+        timeout = Math.max(1, Math.min(timeout, query.deadline - query.sentAt));
+
+        final Query pending = query;
+        query.timeout = timers.schedule(() -> onTimeout(pending), timeout);
+        scheduleHedge(query, timeout);
+
+        upstream.recordQuery();
+        stats.recordTransmission(query.retries > 0);
+        send(query, upstream.getAddress());
+    }
+
+    private void send(Query query, InetSocketAddress upstream) {
+        try {
+            sendBuffer.clear();
+            DnsCodec.encodeQuery(sendBuffer, query.queryId, DnsCodec.FLAG_RD, query.name, query.qType,
+                    query.edns ? udpPayloadSize : 0);
+            sendBuffer.flip();
+            channel.send(sendBuffer, upstream);
+        } catch (IOException e) {
+            // treated like a lost packet, the timeout will trigger a retry
+        }
+    }
+
+    // Arms the hedge once the primary upstream has enough RTT samples to base the delay on
+    private void scheduleHedge(Query query, long timeout) {
+        double percentile = hedgePercentile;
+        if (percentile == 0 || upstreams.size() < 2 || query.hedge != null) {
+            return;
+        }
+
+        long delay = query.upstream.rttPercentile(percentile);
+        if (delay < 0) {
+            return;
+        }
+        delay = Math.max(MIN_HEDGE_NANOS, delay);
+        if (delay >= timeout) {
+            return;
+        }
+
+        final Query pending = query;
+        query.hedgeTimeout = timers.schedule(() -> onHedge(pending), delay);
+    }
+
+    private void onHedge(Query query) {
+        query.hedge = selectUpstream(query.upstream);
+        query.hedgeSentAt = System.nanoTime();
+        query.hedge.recordQuery();
+        stats.recordHedge();
+        stats.recordTransmission(false);
+        send(query, query.hedge.getAddress());
+    }
+
+    private void onTimeout(Query query) {
+        query.upstream.recordTimeout();
+        if (query.hedge != null) {
+            query.hedge.recordTimeout();
+        }
+        cancelHedge(query);
+        stats.recordTimeout();
+
+        boolean pastDeadline = System.nanoTime() >= query.deadline;
+        if (query.retries + 1 < maxRetries && !pastDeadline) {
+            query.retries++;
+            transmit(query, selectUpstream(query.upstream));
+            return;
+        }
+
+        release(query);
+        if (pastDeadline) {
+            stats.recordDeadlineExceeded();
+            query.future.completeExceptionally(new SocketTimeoutException("Deadline of "
+                    + TimeUnit.NANOSECONDS.toMillis(deadlineNanos) + " ms exceeded for " + query.name));
+        } else {
+            stats.recordRetriesExhausted();
+            query.future.completeExceptionally(new SocketTimeoutException(
+                    "Maximum number of retries " + maxRetries + " exceeded for " + query.name));
+        }
+    }
+
+    private void readResponses() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+
+            // whatever a datagram holds, it must not stop the loop
+            try {
+                handleResponse(source);
+            } catch (RuntimeException e) {
+                stats.recordMalformed();
+            }
+        }
+    }
+
+    private void handleResponse(SocketAddress source) {
+        if (receiveBuffer.remaining() < DnsCodec.HEADER_LENGTH) {
+            return;
+        }
+
+        Query query = inFlight[DnsCodec.queryId(receiveBuffer)];
+
+        // late reply to a lookup that already completed, or one for a different question
+        if (query == null || !DnsCodec.questionMatches(receiveBuffer, query.name, query.qType)) {
+            return;
+        }
+
+        DnsUpstream from = responder(query, source);
+        if (from == null) {
+            return;
+        }
+
+        // truncated, the full response has to come over TCP
+        if ((DnsCodec.flags(receiveBuffer) & DnsCodec.FLAG_TC) != 0) {
+            release(query);
+            query.timeout.cancel();
+            cancelHedge(query);
+            resolveOverTcp(query, from);
+            return;
+        }
+
+        DnsResponse response;
+        try {
+            response = DnsClient.parseResponse(receiveBuffer, codec);
+        } catch (IOException e) {
+            stats.recordMalformed();
+            return; // malformed, keep waiting for a retransmission
+        }
+
+        query.timeout.cancel();
+        cancelHedge(query);
+
+        // server without EDNS support (RFC 6891 7), ask it again without the OPT record
+        if (response.getRCode() == 1 && query.edns && response.getUdpPayloadSize() == 0) {
+            query.edns = false;
+            transmit(query, from);
+            return;
+        }
+
+        release(query);
+        complete(query, response);
+    }
+
+    /**
+     * Works out which of the query's upstreams sent a response and updates its
+     * statistics, or returns null if the source is not one the query went to.
+     * The RTT is only sampled when that server got exactly one transmission,
+     * since otherwise the response cannot be matched to a send (Karn's algorithm).
+     */
+    private DnsUpstream responder(Query query, SocketAddress source) {
+        long now = System.nanoTime();
+
+        if (query.upstream.getAddress().equals(source)) {
+            if (query.sends == 1) {
+                query.upstream.recordRtt(now - query.sentAt);
+            } else {
+                query.upstream.recordResponse();
+            }
+            return query.upstream;
+        }
+
+        if (query.hedge != null && query.hedge.getAddress().equals(source)) {
+            query.hedge.recordRtt(now - query.hedgeSentAt);
+            return query.hedge;
+        }
+        return null;
+    }
+
+    /**
+     * Picks the upstream with the best score, skipping unhealthy ones unless
+     * all of them are, and avoiding the excluded one if there is any choice.
+     */
+    private DnsUpstream selectUpstream(DnsUpstream exclude) {
+        DnsUpstream best = null;
+        boolean bestHealthy = false;
+        double bestScore = 0;
+
+        for (DnsUpstream upstream : upstreams) {
+            if (upstream == exclude) {
+                continue;
+            }
+            boolean healthy = upstream.isHealthy();
+            double score = upstream.score();
+            if (best == null || (healthy && !bestHealthy) || (healthy == bestHealthy && score < bestScore)) {
+                best = upstream;
+                bestHealthy = healthy;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : exclude;
+    }
+
+    // Disarms the hedge timer and forgets the hedge upstream, if one was used
+    private void cancelHedge(Query query) {
+        if (query.hedgeTimeout != null) {
+            query.hedgeTimeout.cancel();
+            query.hedgeTimeout = null;
+        }
+        query.hedge = null;
+    }
+
+    private void resolveOverTcp(Query query, DnsUpstream upstream) {
+        tcpPool.query(upstream.getAddress(), query.name, query.qType).whenComplete((response, error) -> {
+            if (error != null) {
+                query.future.completeExceptionally(error);
+            } else {
+                complete(query, response);
+            }
+        });
+    }
+
+    private void complete(Query query, DnsResponse response) {
+        DnsCache cache = this.cache;
+        if (cache != null) {
+            cache.put(query.name, query.qType, response);
+        }
+
+        stats.recordAnswered(query.retries);
+        double duration = (double) (System.nanoTime() - query.startTime) / 1e9;
+        query.future.complete(new DnsAnswer(query.name, query.qType, response, query.retries, duration, false));
+    }
+
+    private void release(Query query) {
+        inFlight[query.queryId & 0xffff] = null;
+        inFlightCount--;
+    }
+
+    // Fails everything still outstanding once the loop stops
+    private void shutdown() {
+        running = false;
+        IOException closed = new IOException("Resolver is closed");
+
+        for (int id = 0; id < inFlight.length; id++) {
+            if (inFlight[id] != null) {
+                inFlight[id].future.completeExceptionally(closed);
+                inFlight[id] = null;
+            }
+        }
+        inFlightCount = 0;
+
+        Query query;
+        while ((query = submissions.poll()) != null) {
+            query.future.completeExceptionally(closed);
+        }
+
+        tcpPool.close();
+
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException e) {
+            // nothing left to do with them
+        }
+    }
+}
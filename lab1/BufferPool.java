@@ -0,0 +1,79 @@
+/**
+ * BufferPool
+ *
+ * Byte arrays for the chunks frame payloads are streamed through, reused
+ * across requests and connections so that every chunk does not cost a fresh
+ * allocation (and zeroing). Payloads are never held whole, so no request is
+ * larger than FrameProtocol's chunk size, which is MAX_SIZE. Arrays come
+ * in power-of-two size classes from MIN_SIZE to MAX_SIZE; each class keeps at
+ * most MAX_POOLED_BYTES_PER_CLASS worth of free arrays (and at least one).
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 12;
+	private static final int MAX_SHIFT = 16;
+	public static final int MIN_SIZE = 1 << MIN_SHIFT;
+	public static final int MAX_SIZE = 1 << MAX_SHIFT;
+
+	private static final int MAX_POOLED_BYTES_PER_CLASS = 8 << 20;
+
+	private final Queue<byte[]>[] free;
+	private final AtomicInteger[] freeCounts;
+
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public BufferPool() {
+		int classes = MAX_SHIFT - MIN_SHIFT + 1;
+		free = new Queue[classes];
+		freeCounts = new AtomicInteger[classes];
+		for (int i = 0; i < classes; i++) {
+			free[i] = new ConcurrentLinkedQueue<byte[]>();
+			freeCounts[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Returns an array of at least the given size, which must not exceed
+	 * MAX_SIZE. Its contents are whatever the previous user left in it.
+	 */
+	public byte[] acquire(int size) {
+		if (size > MAX_SIZE) {
+			throw new IllegalArgumentException("Buffer of " + size + " bytes is larger than " + MAX_SIZE);
+		}
+		int sizeClass = sizeClass(size);
+		byte[] buffer = free[sizeClass].poll();
+		if (buffer == null) {
+			return new byte[MIN_SIZE << sizeClass];
+		}
+		freeCounts[sizeClass].decrementAndGet();
+		return buffer;
+	}
+
+	// Gives an array from acquire() back; it must not be used afterwards
+	public void release(byte[] buffer) {
+		int length = buffer.length;
+		if (length < MIN_SIZE || length > MAX_SIZE || Integer.bitCount(length) != 1) {
+			return;
+		}
+		int sizeClass = Integer.numberOfTrailingZeros(length) - MIN_SHIFT;
+		int limit = Math.max(1, MAX_POOLED_BYTES_PER_CLASS / length);
+		if (freeCounts[sizeClass].incrementAndGet() > limit) {
+			freeCounts[sizeClass].decrementAndGet();
+			return;
+		}
+		free[sizeClass].offer(buffer);
+	}
+
+	// Smallest class holding size bytes
+	private static int sizeClass(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
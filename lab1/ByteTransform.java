@@ -0,0 +1,72 @@
+/**
+ * ByteTransform
+ *
+ * A processing step the servers apply to each message before echoing it back.
+ * A transform rewrites the bytes between the buffer's position and limit in
+ * place, so the receive buffer can be sent back as-is without decoding it to
+ * a String or copying it. Steps can be chained with andThen().
+ *
+ * The case mappings only touch the ASCII letters. Every other byte, including
+ * each byte of a multi-byte UTF-8 sequence, is passed through unchanged, so
+ * UTF-8 text stays valid and non-ASCII letters keep their case.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.nio.ByteBuffer;
+
+public interface ByteTransform {
+
+	// Echoes the message unchanged
+	ByteTransform IDENTITY = buffer -> {};
+
+	// 'a'-'z' to 'A'-'Z'
+	ByteTransform UPPER_CASE = buffer -> mapAsciiRange(buffer, 'a', 'z');
+
+	// 'A'-'Z' to 'a'-'z'
+	ByteTransform LOWER_CASE = buffer -> mapAsciiRange(buffer, 'A', 'Z');
+
+	/**
+	 * Rewrites the bytes between the buffer's position and limit in place.
+	 * The position and limit are left where they were.
+	 */
+	void apply(ByteBuffer buffer);
+
+	default ByteTransform andThen(ByteTransform next) {
+		return buffer -> {
+			apply(buffer);
+			next.apply(buffer);
+		};
+	}
+
+	/**
+	 * Flips the case bit (0x20) of every byte in [first, last], working on
+	 * eight bytes at a time. Both bounds must be ASCII letters of one case.
+	 */
+	static void mapAsciiRange(ByteBuffer buffer, char first, char last) {
+		final long ones = 0x0101010101010101L;
+		final long highBits = 0x8080808080808080L;
+		final long atLeastFirst = (0x80 - first) * ones;
+		final long aboveLast = (0x80 - last - 1) * ones;
+
+		int i = buffer.position();
+		int limit = buffer.limit();
+
+		for (; i + 8 <= limit; i += 8) {
+			long word = buffer.getLong(i);
+
+			// with the high bit of each byte cleared, adding can never carry into the next byte
+			long low = word & ~highBits;
+			long inRange = (low + atLeastFirst) & ~(low + aboveLast) & ~word & highBits;
+			if (inRange != 0) {
+				buffer.putLong(i, word ^ (inRange >>> 2));
+			}
+		}
+
+		for (; i < limit; i++) {
+			byte b = buffer.get(i);
+			if (b >= first && b <= last) {
+				buffer.put(i, (byte) (b ^ 0x20));
+			}
+		}
+	}
+}
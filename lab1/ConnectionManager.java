@@ -0,0 +1,163 @@
+/**
+ * ConnectionManager
+ *
+ * Admission control for MultiThreadedTCPServer. Every accepted socket is
+ * offered to admit(): while fewer than maxConnections are open it gets the
+ * idle timeout and is tracked, otherwise it is closed at once instead of
+ * waiting for a thread. Handlers give their socket back with release(), or
+ * with reject() when the executor had no room for it after all.
+ *
+ * drain() stops admitting, shuts down the input side of every open
+ * connection so that handlers answer what they already read and finish, and
+ * closes whatever is still open once the drain time is up.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.io.*;
+import java.net.*;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ConnectionManager {
+
+	private final int maxConnections;
+	private final int idleTimeoutMillis;
+
+	private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+	private final AtomicInteger active = new AtomicInteger();
+	private volatile boolean draining;
+
+	private final LongAdder accepted = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder timedOut = new LongAdder();
+	private final LongAdder completed = new LongAdder();
+
+	public ConnectionManager(int maxConnections, int idleTimeoutMillis) {
+		this.maxConnections = maxConnections;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+	}
+
+	/**
+	 * Takes on the connection if there is room for it, and closes it
+	 * otherwise. Returns true if it was admitted.
+	 */
+	public boolean admit(Socket socket) {
+		if (draining) {
+			refuse(socket);
+			return false;
+		}
+		if (active.incrementAndGet() > maxConnections) {
+			active.decrementAndGet();
+			refuse(socket);
+			return false;
+		}
+
+		accepted.increment();
+		open.add(socket);
+		try {
+			socket.setSoTimeout(idleTimeoutMillis);
+		} catch (SocketException e) {
+			release(socket);
+			return false;
+		}
+		return true;
+	}
+
+	// Closes an admitted connection that is done with
+	public void release(Socket socket) {
+		if (open.remove(socket)) {
+			active.decrementAndGet();
+			completed.increment();
+		}
+		closeQuietly(socket);
+	}
+
+	// Closes an admitted connection that could not be handed to a thread
+	public void reject(Socket socket) {
+		if (open.remove(socket)) {
+			active.decrementAndGet();
+			rejected.increment();
+		}
+		closeQuietly(socket);
+	}
+
+	// Called by handlers whose client went quiet for longer than the idle timeout
+	public void recordTimeout() {
+		timedOut.increment();
+	}
+
+	/**
+	 * Stops admitting connections and waits up to the given time for the open
+	 * ones to finish. Returns the number that had to be closed forcibly.
+	 */
+	public int drain(long timeoutMillis) throws InterruptedException {
+		draining = true;
+
+		// reads return EOF, so handlers finish the requests they have and close
+		for (Socket socket : open) {
+			try {
+				socket.shutdownInput();
+			} catch (IOException e) {
+				// already closed
+			}
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (active.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+
+		int forced = 0;
+		for (Socket socket : open) {
+			if (open.remove(socket)) {
+				active.decrementAndGet();
+				closeQuietly(socket);
+				forced++;
+			}
+		}
+		return forced;
+	}
+
+	public int getActive() {
+		return active.get();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	public long getTimedOut() {
+		return timedOut.sum();
+	}
+
+	public long getCompleted() {
+		return completed.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "Connections: " + getActive() + " active (max " + maxConnections + "), " + getAccepted() + " accepted, "
+				+ getRejected() + " rejected, " + getTimedOut() + " timed out, " + getCompleted() + " completed";
+	}
+
+	// Turns away a connection that was never admitted
+	private void refuse(Socket socket) {
+		rejected.increment();
+		closeQuietly(socket);
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// nothing left to do with it
+		}
+	}
+}
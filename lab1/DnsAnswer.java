@@ -0,0 +1,54 @@
+/**
+ * DNS Answer
+ *
+ * Outcome of one resolver lookup: the decoded response plus how it was
+ * obtained.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+public class DnsAnswer {
+
+    private final String name;
+    private final short qType;
+    private final DnsResponse response;
+    private final int retries;
+    private final double duration;
+    private final boolean cached;
+
+    public DnsAnswer(String name, short qType, DnsResponse response, int retries, double duration, boolean cached) {
+        this.name = name;
+        this.qType = qType;
+        this.response = response;
+        this.retries = retries;
+        this.duration = duration;
+        this.cached = cached;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public short getQType() {
+        return qType;
+    }
+
+    public DnsResponse getResponse() {
+        return response;
+    }
+
+    // number of retransmissions before the response arrived
+    public int getRetries() {
+        return retries;
+    }
+
+    // seconds between the first transmission and the response
+    public double getDuration() {
+        return duration;
+    }
+
+    // true if the response came from the cache instead of the network
+    public boolean isCached() {
+        return cached;
+    }
+}
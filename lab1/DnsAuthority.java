@@ -0,0 +1,827 @@
+/**
+ * DNS Authority
+ *
+ * Authoritative data for one or more zones, loaded from master files and
+ * answered without encoding anything per query. Used by UDPServer -z.
+ *
+ * Names are kept in a trie keyed by label from the root down (the reversed
+ * label order of a dotted name), so a query is looked up by walking its
+ * labels straight out of the packet, right to left, with no String built.
+ * Each node's children are a sorted array searched case-insensitively.
+ *
+ * Every answer a name can produce for A, NS, MX and CNAME (including a CNAME
+ * followed through the zone, and A records for NS and MX targets as
+ * additional data) is encoded once at load time, with compression. A query
+ * for it is answered by copying those bytes, patching the ID and RD flag and
+ * copying the query's name over the question to keep its letter case. The
+ * other outcomes (referral at a delegation, NXDOMAIN, no data, refused) echo
+ * the query's question after a header and append a precomputed tail.
+ *
+ * Supported master file syntax: $ORIGIN, $TTL, @, relative names, blank
+ * owners, optional TTL and class, comments and parentheses. Records of types
+ * other than A, NS, MX and CNAME (SOA included) are skipped with a warning.
+ * The first $ORIGIN of a file is its zone apex; "$ORIGIN ." makes it the root
+ * zone, whose delegations a stand-in root server hands out as referrals.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DnsAuthority {
+
+    // Response codes
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_NXDOMAIN = 3;
+    private static final int RCODE_NOTIMP = 4;
+    private static final int RCODE_REFUSED = 5;
+
+    // Query types with precomputed answers, in the order of Node.answers
+    private static final short[] ANSWER_TYPES = { DnsRecord.TYPE_A, DnsRecord.TYPE_NS, DnsRecord.TYPE_MX,
+            DnsRecord.TYPE_CNAME };
+
+    // TTL of records before any $TTL or explicit TTL
+    private static final int DEFAULT_TTL = 3600;
+
+    // CNAME chains are followed through the zone at most this far
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    // A name has at most 127 labels
+    private static final int MAX_LABELS = 127;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    // Offsets of the query name's labels, per thread answering
+    private static final ThreadLocal<int[]> LABELS = ThreadLocal.withInitial(() -> new int[MAX_LABELS]);
+
+    // Looked up once so that recording is only an add per query
+    private static final Metrics METRICS = Metrics.forComponent("DnsAuthority");
+    private static final LongAdder ANSWERS = METRICS.counter("answers");
+    private static final LongAdder NO_DATA = METRICS.counter("noData");
+    private static final LongAdder REFERRALS = METRICS.counter("referrals");
+    private static final LongAdder NXDOMAIN = METRICS.counter("nxDomain");
+    private static final LongAdder REFUSED = METRICS.counter("refused");
+    private static final LongAdder ERRORS = METRICS.counter("errors");
+    private static final LongAdder TRUNCATED = METRICS.counter("truncated");
+
+    private final Node root = new Node(null, "");
+
+    // Used for every response encoded while loading
+    private final Encoder encoder = new Encoder();
+    private int names;
+    private int records;
+    private int responses;
+
+    /**
+     * Loads the zone files, in order, into one authority. Throws IOException
+     * naming the file and line of the first syntax error.
+     */
+    public static DnsAuthority load(List<String> zoneFiles) throws IOException {
+        DnsAuthority authority = new DnsAuthority();
+        for (String zoneFile : zoneFiles) {
+            authority.parse(Path.of(zoneFile));
+        }
+        authority.precompute(authority.root, false);
+        authority.freeze(authority.root);
+        return authority;
+    }
+
+    public int getNames() {
+        return names;
+    }
+
+    public int getRecords() {
+        return records;
+    }
+
+    // Number of precomputed answers and referrals
+    public int getResponses() {
+        return responses;
+    }
+
+    /**
+     * Writes the response to the query between 0 and the query's limit at
+     * the reply's position, and advances the position past it. Returns false
+     * if the packet should be dropped instead, as when it is a response or
+     * too short to answer.
+     */
+    public boolean respond(ByteBuffer query, ByteBuffer reply) {
+        int limit = query.limit();
+        if (limit < DnsCodec.HEADER_LENGTH || (DnsCodec.flags(query) & DnsCodec.FLAG_QR) != 0) {
+            return false;
+        }
+        int queryFlags = DnsCodec.flags(query);
+
+        if ((queryFlags & DnsCodec.OPCODE_MASK) != 0) {
+            ERRORS.increment();
+            return header(query, reply, RCODE_NOTIMP);
+        }
+        if (DnsCodec.qdCount(query) != 1) {
+            ERRORS.increment();
+            return header(query, reply, RCODE_FORMERR);
+        }
+
+        // the name's labels, read in place
+        int[] labels = LABELS.get();
+        int labelCount = 0;
+        int index = DnsCodec.HEADER_LENGTH;
+        while (true) {
+            int length = index < limit ? query.get(index) & 0xff : -1;
+            if (length == 0) {
+                index++;
+                break;
+            }
+            // compression pointers, truncated names and over-long names are all malformed in a query
+            if (length < 0 || length > 63 || labelCount == MAX_LABELS || index + 1 + length >= limit
+                    || index + 1 + length - DnsCodec.HEADER_LENGTH >= MAX_NAME_LENGTH) {
+                ERRORS.increment();
+                return header(query, reply, RCODE_FORMERR);
+            }
+            labels[labelCount++] = index;
+            index += 1 + length;
+        }
+        int nameEnd = index;
+        int questionEnd = nameEnd + 4;
+        if (questionEnd > limit) {
+            ERRORS.increment();
+            return header(query, reply, RCODE_FORMERR);
+        }
+        short qType = query.getShort(nameEnd);
+        short qClass = query.getShort(nameEnd + 2);
+
+        // an OPT record straight after the question raises the size limit, and is answered with one
+        boolean edns = DnsCodec.arCount(query) > 0 && questionEnd + DnsCodec.OPT_LENGTH <= limit
+                && query.get(questionEnd) == 0 && query.getShort(questionEnd + 1) == DnsCodec.TYPE_OPT;
+        int payloadLimit = edns
+                ? Math.max(DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE, query.getShort(questionEnd + 3) & 0xffff)
+                : DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE;
+
+        // walk down from the root; the deepest apex passed is the zone, a delegation below it ends the walk
+        // (the root itself is an apex when a root zone is loaded)
+        Node node = root;
+        Node apex = root.apex ? root : null;
+        Node cut = null;
+        int matched = 0;
+        while (matched < labelCount) {
+            Node child = node.child(query, labels[labelCount - 1 - matched]);
+            if (child == null) {
+                break;
+            }
+            node = child;
+            matched++;
+            if (node.apex) {
+                apex = node;
+            } else if (apex != null && node.referral != null) {
+                cut = node;
+                break;
+            }
+        }
+
+        int start = reply.position();
+        if (apex == null || qClass != DnsCodec.CLASS_IN) {
+            REFUSED.increment();
+            return echo(query, questionEnd, reply, RCODE_REFUSED, false, null, 0, 0, edns, payloadLimit);
+        }
+        if (cut != null) {
+            REFERRALS.increment();
+            return echo(query, questionEnd, reply, 0, false, cut.referral, cut.referralNsCount,
+                    cut.referralArCount, edns, payloadLimit);
+        }
+        if (matched < labelCount) {
+            NXDOMAIN.increment();
+            return echo(query, questionEnd, reply, RCODE_NXDOMAIN, true, null, 0, 0, edns, payloadLimit);
+        }
+
+        byte[] answer = node.answer(qType);
+        if (answer == null) {
+            NO_DATA.increment();
+            return echo(query, questionEnd, reply, 0, true, null, 0, 0, edns, payloadLimit);
+        }
+
+        ANSWERS.increment();
+        reply.put(answer);
+        reply.putShort(start, query.getShort(0));
+        reply.putShort(start + 2, (short) (reply.getShort(start + 2) | (queryFlags & DnsCodec.FLAG_RD)));
+        // same name as the one encoded, maybe with different letter case
+        reply.put(start + DnsCodec.HEADER_LENGTH, query, DnsCodec.HEADER_LENGTH, nameEnd - DnsCodec.HEADER_LENGTH);
+        return finish(reply, start, questionEnd, edns, payloadLimit);
+    }
+
+    // A bare header with the query's ID and RD flag and no sections
+    private static boolean header(ByteBuffer query, ByteBuffer reply, int rcode) {
+        reply.putShort(query.getShort(0));
+        reply.putShort((short) (DnsCodec.FLAG_QR | (DnsCodec.flags(query) & DnsCodec.FLAG_RD) | rcode));
+        reply.putShort((short) 0);
+        reply.putShort((short) 0);
+        reply.putShort((short) 0);
+        reply.putShort((short) 0);
+        return true;
+    }
+
+    /**
+     * Writes a header, the query's question and the given authority and
+     * additional records, then finishes the reply.
+     */
+    private static boolean echo(ByteBuffer query, int questionEnd, ByteBuffer reply, int rcode,
+            boolean authoritative, byte[] tail, int nsCount, int arCount, boolean edns, int payloadLimit) {
+        int start = reply.position();
+        int flags = DnsCodec.FLAG_QR | (authoritative ? DnsCodec.FLAG_AA : 0)
+                | (DnsCodec.flags(query) & DnsCodec.FLAG_RD) | rcode;
+
+        reply.putShort(query.getShort(0));
+        reply.putShort((short) flags);
+        reply.putShort((short) 1);
+        reply.putShort((short) 0);
+        reply.putShort((short) nsCount);
+        reply.putShort((short) arCount);
+        reply.put(reply.position(), query, DnsCodec.HEADER_LENGTH, questionEnd - DnsCodec.HEADER_LENGTH);
+        reply.position(start + questionEnd);
+        if (tail != null) {
+            reply.put(tail);
+        }
+        return finish(reply, start, questionEnd, edns, payloadLimit);
+    }
+
+    /**
+     * Adds an OPT record if the query had one, and cuts the reply down to
+     * its question with TC set if it is larger than the client accepts.
+     */
+    private static boolean finish(ByteBuffer reply, int start, int questionEnd, boolean edns, int payloadLimit) {
+        if (reply.position() - start + (edns ? DnsCodec.OPT_LENGTH : 0) > payloadLimit) {
+            TRUNCATED.increment();
+            reply.position(start + questionEnd);
+            reply.putShort(start + 2, (short) (reply.getShort(start + 2) | DnsCodec.FLAG_TC));
+            reply.putShort(start + 6, (short) 0);
+            reply.putShort(start + 8, (short) 0);
+            reply.putShort(start + 10, (short) 0);
+        }
+        if (edns) {
+            reply.put((byte) 0);
+            reply.putShort(DnsCodec.TYPE_OPT);
+            reply.putShort((short) DnsCodec.DEFAULT_UDP_PAYLOAD_SIZE);
+            reply.putInt(0);
+            reply.putShort((short) 0);
+            reply.putShort(start + 10, (short) (reply.getShort(start + 10) + 1));
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------------- loading
+
+    private void parse(Path zoneFile) throws IOException {
+        String origin = null;
+        Node apex = null;
+        int defaultTtl = DEFAULT_TTL;
+        String owner = null;
+        int lineNumber = 0;
+
+        try (BufferedReader in = Files.newBufferedReader(zoneFile, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                int recordLine = lineNumber;
+                String entry = stripComment(line);
+
+                // a record continues over lines until its parentheses close
+                while (entry.indexOf('(') >= 0 && entry.indexOf(')') < 0) {
+                    String next = in.readLine();
+                    if (next == null) {
+                        throw error(zoneFile, recordLine, "unclosed parenthesis");
+                    }
+                    lineNumber++;
+                    entry += " " + stripComment(next);
+                }
+                boolean blankOwner = !entry.isEmpty() && Character.isWhitespace(entry.charAt(0));
+                String[] fields = entry.replace('(', ' ').replace(')', ' ').trim().split("\\s+");
+                if (fields[0].isEmpty()) {
+                    continue;
+                }
+
+                try {
+                    if (fields[0].equals("$ORIGIN")) {
+                        origin = absolute(field(fields, 1), origin);
+                        if (apex == null) {
+                            apex = node(origin);
+                            apex.apex = true;
+                        }
+                        continue;
+                    }
+                    if (fields[0].equals("$TTL")) {
+                        defaultTtl = ttl(field(fields, 1));
+                        continue;
+                    }
+                    if (fields[0].startsWith("$")) {
+                        throw new IllegalArgumentException("unsupported directive " + fields[0]);
+                    }
+                    if (apex == null) {
+                        throw new IllegalArgumentException("records before $ORIGIN");
+                    }
+
+                    int i = 0;
+                    if (!blankOwner) {
+                        owner = absolute(fields[i++], origin);
+                    } else if (owner == null) {
+                        throw new IllegalArgumentException("no owner name");
+                    }
+
+                    int ttl = defaultTtl;
+                    for (int optional = 0; optional < 2; optional++) {
+                        String field = field(fields, i);
+                        if (Character.isDigit(field.charAt(0))) {
+                            ttl = ttl(field);
+                            i++;
+                        } else if (field.equalsIgnoreCase("IN")) {
+                            i++;
+                        }
+                    }
+
+                    String type = field(fields, i++).toUpperCase(Locale.ROOT);
+                    Record record;
+                    switch (type) {
+                    case "A":
+                        record = new Record(DnsRecord.TYPE_A, ttl, 0, address(field(fields, i)), null);
+                        break;
+                    case "NS":
+                        record = new Record(DnsRecord.TYPE_NS, ttl, 0, null, absolute(field(fields, i), origin));
+                        break;
+                    case "CNAME":
+                        record = new Record(DnsRecord.TYPE_CNAME, ttl, 0, null, absolute(field(fields, i), origin));
+                        break;
+                    case "MX":
+                        record = new Record(DnsRecord.TYPE_MX, ttl, Integer.parseInt(field(fields, i)), null,
+                                absolute(field(fields, i + 1), origin));
+                        break;
+                    default:
+                        Log.warn("{} skipped: unsupported type {}", zoneFile + ":" + recordLine, type);
+                        continue;
+                    }
+
+                    Node node = node(owner);
+                    boolean cname = record.type == DnsRecord.TYPE_CNAME;
+                    for (Record existing : node.records) {
+                        if (cname || existing.type == DnsRecord.TYPE_CNAME) {
+                            throw new IllegalArgumentException("a CNAME cannot share its name with other records");
+                        }
+                    }
+                    if (!node.apex && !isUnder(node, apex)) {
+                        throw new IllegalArgumentException(owner + " is outside the zone " + apex.name);
+                    }
+                    node.records.add(record);
+                    records++;
+                } catch (IllegalArgumentException e) {
+                    throw error(zoneFile, recordLine, e.getMessage());
+                }
+            }
+        }
+        if (apex == null) {
+            throw new IOException(zoneFile + ": no $ORIGIN");
+        }
+    }
+
+    private static String stripComment(String line) {
+        int semicolon = line.indexOf(';');
+        return semicolon < 0 ? line : line.substring(0, semicolon);
+    }
+
+    private static String field(String[] fields, int i) {
+        if (i >= fields.length) {
+            throw new IllegalArgumentException("missing field");
+        }
+        return fields[i];
+    }
+
+    private static IOException error(Path zoneFile, int line, String message) {
+        return new IOException(zoneFile + ":" + line + ": " + message);
+    }
+
+    private static int ttl(String field) {
+        long ttl = Long.parseLong(field);
+        if (ttl < 0 || ttl > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("TTL out of range: " + field);
+        }
+        return (int) ttl;
+    }
+
+    // Lower-case dotted name without the trailing dot; the root is ""
+    private static String absolute(String name, String origin) {
+        String result;
+        if (name.equals("@")) {
+            if (origin == null) {
+                throw new IllegalArgumentException("@ before $ORIGIN");
+            }
+            result = origin;
+        } else if (name.endsWith(".")) {
+            result = name.substring(0, name.length() - 1);
+        } else if (origin == null) {
+            throw new IllegalArgumentException("relative name " + name + " before $ORIGIN");
+        } else {
+            result = origin.isEmpty() ? name : name + "." + origin;
+        }
+        result = result.toLowerCase(Locale.ROOT);
+
+        if (DnsCodec.nameLength(result) > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("name too long: " + name);
+        }
+        for (String label : result.split("\\.")) {
+            if (label.length() > 63 || (label.isEmpty() && !result.isEmpty())) {
+                throw new IllegalArgumentException("bad label in " + name);
+            }
+        }
+        return result;
+    }
+
+    private static byte[] address(String field) {
+        String[] parts = field.split("\\.");
+        if (parts.length != 4) {
+            throw new IllegalArgumentException("bad address " + field);
+        }
+        byte[] address = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int octet = Integer.parseInt(parts[i]);
+            if (octet < 0 || octet > 255) {
+                throw new IllegalArgumentException("bad address " + field);
+            }
+            address[i] = (byte) octet;
+        }
+        return address;
+    }
+
+    // The node for a name, created along with its ancestors if needed
+    private Node node(String name) {
+        Node node = root;
+        for (int end = name.length(); end > 0; ) {
+            int dot = name.lastIndexOf('.', end - 1);
+            String label = name.substring(dot + 1, end);
+            Node child = node.building(label);
+            if (child == null) {
+                child = new Node(label, name.substring(dot + 1));
+                node.add(label, child);
+                names++;
+            }
+            node = child;
+            end = dot;
+        }
+        return node;
+    }
+
+    // The existing node for a name, or null
+    private Node find(String name) {
+        Node node = root;
+        for (int end = name.length(); end > 0 && node != null; ) {
+            int dot = name.lastIndexOf('.', end - 1);
+            node = node.building(name.substring(dot + 1, end));
+            end = dot;
+        }
+        return node;
+    }
+
+    private static boolean isUnder(Node node, Node apex) {
+        return apex.name.isEmpty() || node.name.endsWith("." + apex.name);
+    }
+
+    /**
+     * Encodes the answers and referrals of this node and every node below it,
+     * except those below a delegation, which only supply glue.
+     */
+    private void precompute(Node node, boolean belowCut) throws IOException {
+        boolean delegation = isDelegation(node);
+        try {
+            if (belowCut) {
+                // unreachable: lookups stop at the delegation
+            } else if (delegation) {
+                node.referral = encodeReferral(node);
+                responses++;
+            } else if (!node.records.isEmpty()) {
+                node.answers = new byte[ANSWER_TYPES.length][];
+                for (int i = 0; i < ANSWER_TYPES.length; i++) {
+                    node.answers[i] = encodeAnswer(node, ANSWER_TYPES[i]);
+                    if (node.answers[i] != null) {
+                        responses++;
+                    }
+                }
+            }
+        } catch (BufferOverflowException e) {
+            throw new IOException(node.name + ": too many records for one message");
+        }
+
+        for (Node child : node.buildingChildren()) {
+            precompute(child, belowCut || delegation);
+        }
+    }
+
+    // Turns every node's child map into the sorted arrays lookups use
+    private void freeze(Node node) {
+        for (Node child : node.buildingChildren()) {
+            freeze(child);
+        }
+        node.freeze();
+    }
+
+    // NS records anywhere but at a zone apex delegate the name to other servers
+    private static boolean isDelegation(Node node) {
+        if (node.apex) {
+            return false;
+        }
+        for (Record record : node.records) {
+            if (record.type == DnsRecord.TYPE_NS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The whole response for a query of this type at this node, with ID 0
+     * and RD clear, or null if the name has no such data.
+     */
+    private byte[] encodeAnswer(Node node, short qType) {
+        boolean answerable = false;
+        for (Record record : node.records) {
+            answerable |= record.type == qType || record.type == DnsRecord.TYPE_CNAME;
+        }
+        if (!answerable) {
+            return null;
+        }
+
+        encoder.reset(true);
+        encoder.header(DnsCodec.FLAG_QR | DnsCodec.FLAG_AA);
+        encoder.name(node.name);
+        encoder.buf.putShort(qType);
+        encoder.buf.putShort(DnsCodec.CLASS_IN);
+
+        // follow CNAMEs while they stay in this authority's data
+        Node current = node;
+        List<String> targets = new ArrayList<String>();
+        int answers = 0;
+        for (int hops = 0; current != null && hops <= MAX_CNAME_CHAIN; hops++) {
+            if (isDelegation(current)) {
+                break;
+            }
+            boolean found = false;
+            for (Record record : current.records) {
+                if (record.type == qType) {
+                    encoder.record(current.name, record);
+                    answers++;
+                    found = true;
+                    if (record.target != null && qType != DnsRecord.TYPE_CNAME) {
+                        targets.add(record.target);
+                    }
+                }
+            }
+            if (found || qType == DnsRecord.TYPE_CNAME) {
+                break;
+            }
+            Record cname = current.records.isEmpty() ? null : current.records.get(0);
+            if (cname == null || cname.type != DnsRecord.TYPE_CNAME) {
+                break;
+            }
+            encoder.record(current.name, cname);
+            answers++;
+            current = find(cname.target);
+        }
+        if (answers == 0) {
+            return null;
+        }
+
+        // addresses of NS and MX targets, where known
+        int additional = 0;
+        for (String target : targets) {
+            additional += encoder.addresses(find(target), target);
+        }
+
+        encoder.buf.putShort(6, (short) answers);
+        encoder.buf.putShort(10, (short) additional);
+        return encoder.toByteArray();
+    }
+
+    /**
+     * The authority and additional records of a referral to this delegation,
+     * encoded without compression so they can follow any question.
+     */
+    private byte[] encodeReferral(Node node) {
+        encoder.reset(false);
+        int nsCount = 0;
+        int arCount = 0;
+        for (Record record : node.records) {
+            if (record.type == DnsRecord.TYPE_NS) {
+                encoder.record(node.name, record);
+                nsCount++;
+            }
+        }
+        for (Record record : node.records) {
+            if (record.type == DnsRecord.TYPE_NS) {
+                arCount += encoder.addresses(find(record.target), record.target);
+            }
+        }
+        node.referralNsCount = nsCount;
+        node.referralArCount = arCount;
+        return encoder.toByteArray();
+    }
+
+    // One name in the trie; building is replaced by the sorted arrays once loaded
+    private static final class Node {
+        private final byte[] label;
+        private final String name;
+        private boolean apex;
+        private final List<Record> records = new ArrayList<Record>(1);
+        private Map<String, Node> building;
+
+        private byte[][] childLabels = new byte[0][];
+        private Node[] children = new Node[0];
+
+        // Indexed like ANSWER_TYPES; null when there is no data of that type
+        private byte[][] answers;
+
+        // Authority and additional records sent below a delegation
+        private byte[] referral;
+        private int referralNsCount;
+        private int referralArCount;
+
+        private Node(String label, String name) {
+            this.label = label == null ? null : label.getBytes(StandardCharsets.US_ASCII);
+            this.name = name;
+        }
+
+        // Child with this label while loading, or null
+        private Node building(String label) {
+            return building == null ? null : building.get(label);
+        }
+
+        private Collection<Node> buildingChildren() {
+            return building == null ? Collections.<Node>emptyList() : building.values();
+        }
+
+        private void add(String label, Node child) {
+            if (building == null) {
+                building = new HashMap<String, Node>(4);
+            }
+            building.put(label, child);
+        }
+
+        // Replaces the map by arrays sorted in the unsigned byte order child() searches in
+        private void freeze() {
+            children = buildingChildren().toArray(new Node[0]);
+            Arrays.sort(children, (a, b) -> Arrays.compareUnsigned(a.label, b.label));
+            childLabels = new byte[children.length][];
+            for (int i = 0; i < children.length; i++) {
+                childLabels[i] = children[i].label;
+            }
+            building = null;
+        }
+
+        private byte[] answer(short qType) {
+            if (answers == null) {
+                return null;
+            }
+            for (int i = 0; i < ANSWER_TYPES.length; i++) {
+                if (ANSWER_TYPES[i] == qType) {
+                    return answers[i];
+                }
+            }
+            return null;
+        }
+
+        // Binary search for the label at offset in the query, ignoring ASCII case
+        private Node child(ByteBuffer query, int offset) {
+            int low = 0;
+            int high = childLabels.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int cmp = compare(childLabels[mid], query, offset);
+                if (cmp < 0) {
+                    low = mid + 1;
+                } else if (cmp > 0) {
+                    high = mid - 1;
+                } else {
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        private static int compare(byte[] label, ByteBuffer query, int offset) {
+            int length = query.get(offset) & 0xff;
+            int common = Math.min(label.length, length);
+            for (int i = 0; i < common; i++) {
+                int b = query.get(offset + 1 + i) & 0xff;
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                int cmp = (label[i] & 0xff) - b;
+                if (cmp != 0) {
+                    return cmp;
+                }
+            }
+            return label.length - length;
+        }
+    }
+
+    // One record as read from the zone file
+    private static final class Record {
+        private final short type;
+        private final int ttl;
+        private final int preference;
+        private final byte[] address;
+        private final String target;
+
+        private Record(short type, int ttl, int preference, byte[] address, String target) {
+            this.type = type;
+            this.ttl = ttl;
+            this.preference = preference;
+            this.address = address;
+            this.target = target;
+        }
+    }
+
+    // Writes messages at load time, optionally compressing names against earlier ones
+    private static final class Encoder {
+        private final ByteBuffer buf = ByteBuffer.allocate(0xffff);
+        private final Map<String, Integer> offsets = new HashMap<String, Integer>();
+        private boolean compress;
+
+        // Starts a new message
+        private void reset(boolean compress) {
+            this.compress = compress;
+            buf.clear();
+            offsets.clear();
+        }
+
+        private void header(int flags) {
+            buf.putShort((short) 0);
+            buf.putShort((short) flags);
+            buf.putShort((short) 1);
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+            buf.putShort((short) 0);
+        }
+
+        private void name(String name) {
+            while (!name.isEmpty()) {
+                Integer pointer = compress ? offsets.get(name) : null;
+                if (pointer != null) {
+                    buf.putShort((short) (0xc000 | pointer));
+                    return;
+                }
+                if (compress && buf.position() < 0x4000) {
+                    offsets.put(name, buf.position());
+                }
+                int dot = name.indexOf('.');
+                String label = dot < 0 ? name : name.substring(0, dot);
+                buf.put((byte) label.length());
+                buf.put(label.getBytes(StandardCharsets.US_ASCII));
+                name = dot < 0 ? "" : name.substring(dot + 1);
+            }
+            buf.put((byte) 0);
+        }
+
+        private void record(String owner, Record record) {
+            name(owner);
+            buf.putShort(record.type);
+            buf.putShort(DnsCodec.CLASS_IN);
+            buf.putInt(record.ttl);
+            int lengthIndex = buf.position();
+            buf.putShort((short) 0);
+            if (record.type == DnsRecord.TYPE_A) {
+                buf.put(record.address);
+            } else {
+                if (record.type == DnsRecord.TYPE_MX) {
+                    buf.putShort((short) record.preference);
+                }
+                name(record.target);
+            }
+            buf.putShort(lengthIndex, (short) (buf.position() - lengthIndex - 2));
+        }
+
+        // Writes the A records of a node, if any, and returns how many
+        private int addresses(Node node, String name) {
+            if (node == null) {
+                return 0;
+            }
+            int count = 0;
+            for (Record record : node.records) {
+                if (record.type == DnsRecord.TYPE_A) {
+                    record(name, record);
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private byte[] toByteArray() {
+            return Arrays.copyOf(buf.array(), buf.position());
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * DNS Batch Resolver
+ *
+ * Resolves many names over a single UDP socket. Up to maxInFlight queries are
+ * outstanding at once; responses are matched back to their query by the 16-bit
+ * query ID and every query carries its own retransmission deadline. If a cache
+ * is set, lookups it can answer complete immediately without a round trip.
+ *
+ * The networking is done by an AsyncDnsResolver; this class bounds how many of
+ * its lookups are in flight and reports each one to a listener.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+public class DnsBatchResolver implements Closeable {
+
+    /**
+     * Receives each lookup once it has either been answered or has run out of
+     * retries. Called from the resolver's event loop thread.
+     */
+    public interface Listener {
+        void completed(Lookup lookup);
+    }
+
+    /**
+     * A single completed query. The response is null if the lookup failed.
+     */
+    public static class Lookup {
+        private final String name;
+        private final short qType;
+        private final int retries;
+        private final double duration;
+        private final boolean cached;
+        private final DnsResponse response;
+
+        private Lookup(String name, short qType, int retries, double duration, boolean cached,
+                DnsResponse response) {
+            this.name = name;
+            this.qType = qType;
+            this.retries = retries;
+            this.duration = duration;
+            this.cached = cached;
+            this.response = response;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public short getQType() {
+            return qType;
+        }
+
+        public int getRetries() {
+            return retries;
+        }
+
+        // seconds between the first transmission and completion
+        public double getDuration() {
+            return duration;
+        }
+
+        public DnsResponse getResponse() {
+            return response;
+        }
+
+        // true if the response came from the cache instead of the network
+        public boolean isCached() {
+            return cached;
+        }
+    }
+
+    private final AsyncDnsResolver resolver;
+    private final int maxRetries;
+    private final int maxInFlight;
+    private final Semaphore window;
+
+    public DnsBatchResolver(InetAddress server, int port, int timeoutMillis, int maxRetries, int maxInFlight)
+            throws IOException {
+        this(server, port, timeoutMillis, maxRetries, maxInFlight, DnsCodec.DEFAULT_UDP_PAYLOAD_SIZE);
+    }
+
+    public DnsBatchResolver(InetAddress server, int port, int timeoutMillis, int maxRetries, int maxInFlight,
+            int udpPayloadSize) throws IOException {
+        this.resolver = new AsyncDnsResolver(server, port, timeoutMillis, maxRetries, udpPayloadSize);
+        this.maxRetries = maxRetries;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    public DnsBatchResolver(List<InetSocketAddress> servers, int timeoutMillis, int maxRetries, int maxInFlight,
+            int udpPayloadSize) throws IOException {
+        this.resolver = new AsyncDnsResolver(servers, timeoutMillis, maxRetries, udpPayloadSize);
+        this.maxRetries = maxRetries;
+        this.maxInFlight = maxInFlight;
+        this.window = new Semaphore(maxInFlight);
+    }
+
+    public void setCache(DnsCache cache) {
+        resolver.setCache(cache);
+    }
+
+    public void setHedgePercentile(double hedgePercentile) {
+        resolver.setHedgePercentile(hedgePercentile);
+    }
+
+    public void setDeadline(int deadlineMillis) {
+        resolver.setDeadline(deadlineMillis);
+    }
+
+    public DnsRetryStats getStats() {
+        return resolver.getStats();
+    }
+
+    public List<DnsUpstream> getUpstreams() {
+        return resolver.getUpstreams();
+    }
+
+    /**
+     * Resolves every name with the given query type and blocks until all of
+     * them have completed.
+     */
+    public void resolve(Iterable<String> names, short qType, Listener listener) throws InterruptedException {
+        for (String name : names) {
+            submit(name, qType, listener);
+        }
+        awaitCompletion();
+    }
+
+    /**
+     * Starts resolving one name, first waiting until fewer than maxInFlight
+     * lookups are outstanding. The listener is called once it completes.
+     */
+    public void submit(String name, short qType, Listener listener) throws InterruptedException {
+        window.acquire();
+
+        final long startTime = System.nanoTime();
+        resolver.resolve(name, qType).whenComplete((answer, error) -> {
+            try {
+                if (answer != null) {
+                    listener.completed(new Lookup(name, qType, answer.getRetries(), answer.getDuration(),
+                            answer.isCached(), answer.getResponse()));
+                } else {
+                    double duration = (double) (System.nanoTime() - startTime) / 1e9;
+                    listener.completed(new Lookup(name, qType, maxRetries, duration, false, null));
+                }
+            } finally {
+                window.release();
+            }
+        });
+    }
+
+    // Blocks until every lookup submitted so far has completed
+    public void awaitCompletion() throws InterruptedException {
+        window.acquire(maxInFlight);
+        window.release(maxInFlight);
+    }
+
+    @Override
+    public void close() throws IOException {
+        resolver.close();
+    }
+}
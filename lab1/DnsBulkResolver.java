@@ -0,0 +1,525 @@
+/**
+ * DNS Bulk Resolver
+ *
+ * Resolves a list of names of any length into a CSV or JSONL file, one row per
+ * distinct name with its status, answers, latency and retry count. Used by
+ * DnsClient -f with -o.
+ *
+ * Names are streamed from a DnsNameSource and submitted to a DnsBatchResolver,
+ * which bounds the lookups in flight. Repeats are recognised by fingerprint,
+ * so the heap holds eight bytes per distinct name rather than the names.
+ * There is no answer cache: every name is looked up once anyway. Rows are
+ * written through a buffer in the order lookups complete.
+ *
+ * Every CHECKPOINT_MILLIS the output is flushed and <output>.checkpoint
+ * records the offset of the earliest input line whose lookup has not completed
+ * and the length of the output at that moment. If the job is killed, running it
+ * again with the same arguments cuts the output back to that length, treats
+ * the names already in it as seen, and continues from that offset. Names
+ * answered after the checkpoint are looked up again, but none is written
+ * twice. The checkpoint is removed once the whole input has been resolved.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+
+public class DnsBulkResolver {
+
+    public enum Format {
+        CSV, JSONL
+    }
+
+    private static final String CSV_HEADER = "name,type,status,latency_ms,retries,answers\n";
+
+    // How often progress is made durable
+    private static final long CHECKPOINT_MILLIS = 5000;
+
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    private final DnsBatchResolver resolver;
+    private final short qType;
+    private final Path input;
+    private final Path output;
+    private final Path checkpoint;
+    private final Format format;
+
+    private final FingerprintSet seen = new FingerprintSet();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Line offsets of the lookups in flight; guarded by the writer's lock, like the output
+    private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+    private FileChannel outputChannel;
+    private Writer writer;
+    private volatile IOException writeError;
+
+    private long resumedFrom = -1;
+    private long alreadyWritten;
+    private long submitted;
+    private long duplicates;
+    private long skipped;
+    private long written;
+    private long failed;
+    private long elapsedNanos;
+
+    /**
+     * The output format is taken from the output file's extension, .csv or
+     * .jsonl; anything else is an IllegalArgumentException.
+     */
+    public DnsBulkResolver(DnsBatchResolver resolver, short qType, Path input, Path output) {
+        String fileName = output.getFileName().toString().toLowerCase(Locale.ROOT);
+        if (fileName.endsWith(".csv")) {
+            this.format = Format.CSV;
+        } else if (fileName.endsWith(".jsonl")) {
+            this.format = Format.JSONL;
+        } else {
+            throw new IllegalArgumentException("Output file must end in .csv or .jsonl");
+        }
+
+        this.resolver = resolver;
+        this.qType = qType;
+        this.input = input;
+        this.output = output;
+        this.checkpoint = output.resolveSibling(output.getFileName() + ".checkpoint");
+    }
+
+    /**
+     * Resolves every name in the input, resuming from the checkpoint if there
+     * is one, and blocks until all rows are written.
+     */
+    public void run() throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        long startOffset = open();
+
+        try (DnsNameSource names = new DnsNameSource(input, startOffset)) {
+            long nextCheckpoint = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_MILLIS);
+
+            while (names.next()) {
+                if (!seen.add(names.fingerprint())) {
+                    duplicates++;
+                    continue;
+                }
+
+                final long offset = names.lineOffset();
+                pending.add(offset);
+                submitted++;
+                resolver.submit(names.name(), qType, lookup -> complete(lookup, offset));
+
+                if (System.nanoTime() >= nextCheckpoint) {
+                    checkpoint(names.nextOffset());
+                    nextCheckpoint = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHECKPOINT_MILLIS);
+                }
+            }
+
+            resolver.awaitCompletion();
+            skipped = names.getSkipped();
+        }
+
+        synchronized (writer) {
+            writer.close();
+        }
+        if (writeError != null) {
+            throw writeError;
+        }
+        Files.deleteIfExists(checkpoint);
+        elapsedNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Opens the output, either fresh or cut back to the checkpoint with the
+     * names it holds marked as seen, and returns the input offset to start at.
+     */
+    private long open() throws IOException {
+        long startOffset = 0;
+        long outputLength = 0;
+
+        if (Files.exists(checkpoint) && Files.exists(output)) {
+            Properties saved = new Properties();
+            try (Reader in = Files.newBufferedReader(checkpoint, StandardCharsets.ISO_8859_1)) {
+                saved.load(in);
+            }
+            try {
+                startOffset = Long.parseLong(saved.getProperty("input"));
+                outputLength = Long.parseLong(saved.getProperty("output"));
+            } catch (NumberFormatException | NullPointerException e) {
+                throw new IOException("Unreadable checkpoint " + checkpoint);
+            }
+            if (outputLength > Files.size(output)) {
+                throw new IOException("Checkpoint " + checkpoint + " is ahead of " + output);
+            }
+            resumedFrom = startOffset;
+        }
+
+        outputChannel = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        outputChannel.truncate(outputLength);
+        outputChannel.position(outputLength);
+
+        // names with a row are done, whatever their position in the input
+        if (outputLength > 0) {
+            try (BufferedReader rows = Files.newBufferedReader(output, StandardCharsets.ISO_8859_1)) {
+                String row;
+                while ((row = rows.readLine()) != null) {
+                    byte[] name = rowName(row).getBytes(StandardCharsets.ISO_8859_1);
+                    if (name.length > 0 && seen.add(DnsNameSource.fingerprint(name, 0, name.length))) {
+                        alreadyWritten++;
+                    }
+                }
+            }
+        }
+
+        // the input's bytes are written back unchanged, so ISO-8859-1 keeps UTF-8 names intact
+        writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(outputChannel),
+                StandardCharsets.ISO_8859_1), OUTPUT_BUFFER_SIZE);
+        if (outputLength == 0 && format == Format.CSV) {
+            writer.write(CSV_HEADER);
+        }
+        return startOffset;
+    }
+
+    // Called on the resolver's thread (or this one, for immediate failures)
+    private void complete(DnsBatchResolver.Lookup lookup, long offset) {
+        latency.record((long) (lookup.getDuration() * 1e9));
+        synchronized (writer) {
+            try {
+                if (format == Format.CSV) {
+                    writeCsv(lookup);
+                } else {
+                    writeJson(lookup);
+                }
+                written++;
+                if (lookup.getResponse() == null) {
+                    failed++;
+                }
+            } catch (IOException e) {
+                if (writeError == null) {
+                    writeError = e;
+                }
+            }
+            pending.remove(offset);
+        }
+    }
+
+    /**
+     * Makes everything written so far durable and records where to resume.
+     * The checkpoint file is replaced atomically, so a kill at any point
+     * leaves either the old one or the new one.
+     */
+    private void checkpoint(long nextOffset) throws IOException {
+        long resumeOffset;
+        long outputLength;
+        synchronized (writer) {
+            if (writeError != null) {
+                throw writeError;
+            }
+            resumeOffset = pending.isEmpty() ? nextOffset : pending.first();
+            writer.flush();
+            outputLength = outputChannel.position();
+        }
+        outputChannel.force(false);
+
+        Properties state = new Properties();
+        state.setProperty("input", Long.toString(resumeOffset));
+        state.setProperty("output", Long.toString(outputLength));
+        Path temporary = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        try (Writer out = Files.newBufferedWriter(temporary, StandardCharsets.ISO_8859_1)) {
+            state.store(out, "DnsClient bulk resolution of " + input);
+        }
+        Files.move(temporary, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // ------------------------------------------------------------------ rows
+
+    private void writeCsv(DnsBatchResolver.Lookup lookup) throws IOException {
+        StringBuilder row = new StringBuilder(128);
+        csvField(row, lookup.getName()).append(',');
+        row.append(typeName(lookup.getQType())).append(',');
+        row.append(status(lookup.getResponse())).append(',');
+        appendMillis(row, lookup.getDuration()).append(',');
+        row.append(lookup.getRetries()).append(',');
+
+        StringBuilder answers = new StringBuilder();
+        if (lookup.getResponse() != null) {
+            for (DnsRecord record : lookup.getResponse().getAnswers()) {
+                if (record.getData() == null) {
+                    continue;
+                }
+                if (answers.length() > 0) {
+                    answers.append(';');
+                }
+                answers.append(typeName(record.getType())).append(' ');
+                if (record.getType() == DnsRecord.TYPE_MX) {
+                    answers.append(record.getPreference() & 0xffff).append(' ');
+                }
+                answers.append(record.getData()).append(' ').append(record.getTtl() & 0xffffffffL);
+            }
+        }
+        csvField(row, answers).append('\n');
+        writer.append(row);
+    }
+
+    private void writeJson(DnsBatchResolver.Lookup lookup) throws IOException {
+        StringBuilder row = new StringBuilder(160);
+        row.append("{\"name\":");
+        jsonString(row, lookup.getName());
+        row.append(",\"type\":\"").append(typeName(lookup.getQType()));
+        row.append("\",\"status\":\"").append(status(lookup.getResponse()));
+        row.append("\",\"latency_ms\":");
+        appendMillis(row, lookup.getDuration());
+        row.append(",\"retries\":").append(lookup.getRetries());
+        row.append(",\"answers\":[");
+
+        boolean first = true;
+        if (lookup.getResponse() != null) {
+            for (DnsRecord record : lookup.getResponse().getAnswers()) {
+                if (record.getData() == null) {
+                    continue;
+                }
+                row.append(first ? "{" : ",{");
+                first = false;
+                row.append("\"type\":\"").append(typeName(record.getType())).append("\",\"ttl\":")
+                        .append(record.getTtl() & 0xffffffffL);
+                if (record.getType() == DnsRecord.TYPE_MX) {
+                    row.append(",\"preference\":").append(record.getPreference() & 0xffff);
+                }
+                row.append(",\"data\":");
+                jsonString(row, record.getData());
+                row.append('}');
+            }
+        }
+        row.append("]}\n");
+        writer.append(row);
+    }
+
+    // The name a row was written for, read back when resuming
+    private String rowName(String row) {
+        if (format == Format.JSONL) {
+            String prefix = "{\"name\":\"";
+            int end = row.indexOf('"', prefix.length());
+            while (end > 0 && row.charAt(end - 1) == '\\') {
+                end = row.indexOf('"', end + 1);
+            }
+            return row.startsWith(prefix) && end > 0 ? unescapeJson(row.substring(prefix.length(), end)) : "";
+        }
+        if (row.equals(CSV_HEADER.trim())) {
+            return "";
+        }
+        if (row.startsWith("\"")) {
+            int end = row.indexOf("\",");
+            return end < 0 ? "" : row.substring(1, end).replace("\"\"", "\"");
+        }
+        int comma = row.indexOf(',');
+        return comma < 0 ? "" : row.substring(0, comma);
+    }
+
+    private static StringBuilder csvField(StringBuilder row, CharSequence value) {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            return row.append(value);
+        }
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            row.append(c == '"' ? "\"\"" : String.valueOf(c));
+        }
+        return row.append('"');
+    }
+
+    private static void jsonString(StringBuilder row, String value) {
+        row.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                row.append('\\').append(c);
+            } else if (c < 0x20) {
+                row.append(String.format("\\u%04x", (int) c));
+            } else {
+                row.append(c);
+            }
+        }
+        row.append('"');
+    }
+
+    private static String unescapeJson(String value) {
+        if (value.indexOf('\\') < 0) {
+            return value;
+        }
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                if (next == 'u' && i + 4 < value.length()) {
+                    out.append((char) Integer.parseInt(value.substring(i + 1, i + 5), 16));
+                    i += 4;
+                } else {
+                    out.append(next);
+                }
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static StringBuilder appendMillis(StringBuilder row, double seconds) {
+        long micros = Math.round(seconds * 1e6);
+        row.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100) {
+            row.append('0');
+        }
+        if (fraction < 10) {
+            row.append('0');
+        }
+        return row.append(fraction);
+    }
+
+    private static String status(DnsResponse response) {
+        if (response == null) {
+            return "FAILED";
+        }
+        switch (response.getRCode()) {
+        case 0:
+            return "NOERROR";
+        case 1:
+            return "FORMERR";
+        case 2:
+            return "SERVFAIL";
+        case 3:
+            return "NXDOMAIN";
+        case 4:
+            return "NOTIMP";
+        case 5:
+            return "REFUSED";
+        default:
+            return "RCODE" + response.getRCode();
+        }
+    }
+
+    private static String typeName(short type) {
+        switch (type) {
+        case DnsRecord.TYPE_A:
+            return "A";
+        case DnsRecord.TYPE_NS:
+            return "NS";
+        case DnsRecord.TYPE_CNAME:
+            return "CNAME";
+        case DnsRecord.TYPE_MX:
+            return "MX";
+        default:
+            return "TYPE" + (type & 0xffff);
+        }
+    }
+
+    // --------------------------------------------------------------- results
+
+    // Input offset resumed from, or -1 if the job started from the beginning
+    public long getResumedFrom() {
+        return resumedFrom;
+    }
+
+    public long getSubmitted() {
+        return submitted;
+    }
+
+    public long getDuplicates() {
+        return duplicates;
+    }
+
+    public long getWritten() {
+        return written;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    @Override
+    public String toString() {
+        double seconds = elapsedNanos / 1e9;
+        StringBuilder out = new StringBuilder();
+        out.append("Resolved ").append(written).append(" names into ").append(output).append(" in ")
+                .append(seconds).append(" seconds (").append((long) (written / Math.max(seconds, 1e-9)))
+                .append(" lookups/s), ").append(failed).append(" failed, ").append(duplicates)
+                .append(" duplicates, ").append(skipped).append(" over-long lines skipped");
+        if (resumedFrom >= 0) {
+            out.append(", resumed from offset ").append(resumedFrom).append(" with ").append(alreadyWritten)
+                    .append(" names already written");
+        }
+        if (latency.getCount() > 0) {
+            out.append("\nLatency: p50 ").append(latency.getPercentile(50) / 1e9).append(" s, p99 ")
+                    .append(latency.getPercentile(99) / 1e9).append(" s, max ").append(latency.getMax() / 1e9)
+                    .append(" s");
+        }
+        return out.toString();
+    }
+
+    /**
+     * Set of 64-bit fingerprints in an open-addressing table, at eight bytes
+     * a slot and at most three quarters full.
+     */
+    private static final class FingerprintSet {
+        private long[] slots = new long[1 << 16];
+        private int size;
+        private boolean hasZero;
+
+        // Returns false if the fingerprint was already present
+        private boolean add(long fingerprint) {
+            if (fingerprint == 0) {
+                boolean added = !hasZero;
+                hasZero = true;
+                return added;
+            }
+            if (insert(slots, fingerprint)) {
+                if (++size > slots.length / 4 * 3) {
+                    grow();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        private static boolean insert(long[] table, long fingerprint) {
+            int mask = table.length - 1;
+            int index = (int) fingerprint & mask;
+            while (table[index] != 0) {
+                if (table[index] == fingerprint) {
+                    return false;
+                }
+                index = (index + 1) & mask;
+            }
+            table[index] = fingerprint;
+            return true;
+        }
+
+        private void grow() {
+            long[] larger = new long[slots.length * 2];
+            for (long fingerprint : slots) {
+                if (fingerprint != 0) {
+                    insert(larger, fingerprint);
+                }
+            }
+            slots = larger;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/**
+ * DNS Cache
+ *
+ * Bounded in-memory cache of responses keyed by (name, query type). Positive
+ * entries live for the smallest TTL among their answer records, NXDOMAIN
+ * results are cached for a fixed negative TTL, and the least recently used
+ * entries are evicted once the estimated memory use exceeds the cap.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class DnsCache {
+
+    private static class Entry {
+        private final DnsResponse response;
+        private final long expiry; // System.nanoTime() deadline
+        private final long size;
+
+        private Entry(DnsResponse response, long expiry, long size) {
+            this.response = response;
+            this.expiry = expiry;
+            this.size = size;
+        }
+    }
+
+    // Rough per-object overheads used to estimate the memory held by an entry
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int RECORD_OVERHEAD = 64;
+
+    private final long maxBytes;
+    private final long negativeTtlNanos;
+
+    // Access-ordered so iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+    private long bytes;
+
+    // Counters, guarded by this
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+
+    public DnsCache(long maxBytes, int negativeTtl) {
+        this.maxBytes = maxBytes;
+        this.negativeTtlNanos = TimeUnit.SECONDS.toNanos(negativeTtl);
+    }
+
+    /**
+     * Returns the cached response for the name and type, or null on a miss.
+     * An NXDOMAIN hit returns a response with RCODE 3.
+     */
+    public synchronized DnsResponse get(String name, short qType) {
+        String key = key(name, qType);
+        Entry entry = entries.get(key);
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+
+        if (entry.expiry - System.nanoTime() <= 0) {
+            entries.remove(key);
+            bytes -= entry.size;
+            expirations++;
+            misses++;
+            return null;
+        }
+
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Caches a response if it is a positive answer with a non-zero TTL or an
+     * NXDOMAIN. Other response codes are never cached.
+     */
+    public synchronized void put(String name, short qType, DnsResponse response) {
+        long ttlNanos;
+
+        if (response.getRCode() == 3) {
+            ttlNanos = negativeTtlNanos;
+        } else if (response.getRCode() == 0 && !response.getAnswers().isEmpty()) {
+            long minTtl = Long.MAX_VALUE;
+            for (DnsRecord record : response.getAnswers()) {
+                minTtl = Math.min(minTtl, record.getTtl() & 0xffffffffL);
+            }
+            ttlNanos = TimeUnit.SECONDS.toNanos(minTtl);
+        } else {
+            return;
+        }
+
+        if (ttlNanos <= 0) {
+            return;
+        }
+
+        String key = key(name, qType);
+        Entry entry = new Entry(response, System.nanoTime() + ttlNanos, estimateSize(key, response));
+
+        // an entry bigger than the whole cache would only flush everything else
+        if (entry.size > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size;
+        }
+        bytes += entry.size;
+
+        evict();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Cache: " + entries.size() + " entries, " + bytes + " bytes, " + hits + " hits, " + misses
+                + " misses, " + evictions + " evictions, " + expirations + " expirations";
+    }
+
+    // Removes least recently used entries until the cache is back under its cap
+    private void evict() {
+        if (bytes <= maxBytes) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext() && bytes > maxBytes) {
+            Entry entry = it.next().getValue();
+            it.remove();
+            bytes -= entry.size;
+
+            if (entry.expiry - now <= 0) {
+                expirations++;
+            } else {
+                evictions++;
+            }
+        }
+    }
+
+    private static String key(String name, short qType) {
+        return name.toLowerCase(Locale.ROOT) + '/' + qType;
+    }
+
+    private static long estimateSize(String key, DnsResponse response) {
+        long size = ENTRY_OVERHEAD + 2L * key.length();
+        if (response.getMessage() != null) {
+            size += response.getMessage().length;
+        }
+        for (DnsRecord record : response.getAnswers()) {
+            size += RECORD_OVERHEAD + (record.getData() == null ? 0 : 2L * record.getData().length());
+        }
+        for (DnsRecord record : response.getAdditional()) {
+            size += RECORD_OVERHEAD + (record.getData() == null ? 0 : 2L * record.getData().length());
+        }
+        return size;
+    }
+}
@@ -2,19 +2,63 @@
 /**
  * DNS Client
  * 
+ * Single lookups record packets, bytes, retransmissions, timeouts, errors,
+ * RTTs and response sizes in Metrics (component DnsClient). The batch and
+ * forwarder modes also publish the resolver's cache and retry counters
+ * (component DnsResolver) and per-upstream RTTs (see DnsUpstream).
+ * 
+ * With -i lookups are iterative instead: a DnsIterativeResolver walks from
+ * the given servers, taken as root hints, down the referrals to the
+ * authoritative servers, which need not offer recursion. Batch lookups share
+ * its delegation cache.
+ * 
+ * With -f and -o the names are streamed into a CSV or JSONL results file by a
+ * DnsBulkResolver instead, which deduplicates them and can resume a run that
+ * was stopped.
+ * 
+ * Results are written through Log.output(), so the threads completing
+ * lookups hand their lines to the log writer instead of locking System.out.
+ * 
  * @author Donya Hojabr, Dylan Havelock
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Collections;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class DnsClient {
 
+    // Batch cache limits
+    private static final long CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int NEGATIVE_TTL = 300;
+
+    // Looked up once so that recording is only an add per packet
+    private static final Metrics METRICS = Metrics.forComponent("DnsClient");
+    private static final LongAdder PACKETS_OUT = METRICS.counter("packetsOut");
+    private static final LongAdder PACKETS_IN = METRICS.counter("packetsIn");
+    private static final LongAdder BYTES_OUT = METRICS.counter("bytesOut");
+    private static final LongAdder BYTES_IN = METRICS.counter("bytesIn");
+    private static final LongAdder RETRANSMISSIONS = METRICS.counter("retransmissions");
+    private static final LongAdder TIMEOUTS = METRICS.counter("timeouts");
+    private static final LongAdder TCP_FALLBACKS = METRICS.counter("tcpFallbacks");
+    private static final LongAdder ERRORS = METRICS.counter("errors");
+    private static final LatencyHistogram RTT_NANOS = METRICS.histogram("rttNanos");
+    private static final LatencyHistogram RESPONSE_BYTES = METRICS.histogram("responseBytes");
+
+    private static final String USAGE = "ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-d deadline] [-p port] [-e payload-size] [-mx|-ns] [-i] [-f file [-o results.csv|results.jsonl] [-w window] [-h hedge-percentile]] [-l listen-port] @server[,server...] name";
+
     // Request Parameters
     private short queryId;
     private int timeout;
     private int maxRetries;
+    private int deadline;
     private int retries;
     private int port;
     private String domainName;
@@ -23,7 +67,19 @@ public class DnsClient {
     private String qTypeStr;
     private byte[] ipAddressByte;
     private InetAddress ipDns;
+    private List<InetAddress> upstreams;
     private double duration;
+    private int udpPayloadSize;
+    private boolean iterative;
+
+    // Batch Parameters
+    private String inputFile;
+    private String outputFile;
+    private int maxInFlight;
+    private double hedgePercentile;
+
+    // Forwarder Parameters
+    private int listenPort;
     
     // Datagram packet objects for sending/receiving
     private DatagramPacket sendPacket = null;
@@ -33,6 +89,7 @@ public class DnsClient {
         // Set Defaults
         timeout = 5;
         maxRetries = 3;
+        deadline = -1;
         retries = 0;
         port = 53;
         domainName = "";
@@ -41,9 +98,23 @@ public class DnsClient {
         qTypeStr = "A";
         ipAddressByte = new byte[] { 0, 0, 0, 0 };
         ipDns = null;
+        upstreams = new ArrayList<InetAddress>();
         duration = 0;
+        udpPayloadSize = DnsCodec.DEFAULT_UDP_PAYLOAD_SIZE;
+        iterative = false;
+        inputFile = null;
+        outputFile = null;
+        maxInFlight = 256;
+        hedgePercentile = 0;
+        listenPort = 0;
 
         this.parseInput(args);
+
+        // by default a lookup may take as long as every retry timing out in full
+        if (deadline < 0) {
+            deadline = timeout * maxRetries;
+        }
+
         Random rand = new Random();
         queryId = (short) rand.nextInt(Short.MAX_VALUE + 1);
     }
@@ -52,6 +123,38 @@ public class DnsClient {
 
         // Create dnsClient object based on input arguments
         DnsClient dnsClient = new DnsClient(args);
+        Metrics.startDump();
+
+        // iterative lookups walk the referrals from the servers given as root hints
+        if (dnsClient.iterative) {
+            if (dnsClient.outputFile != null || dnsClient.listenPort != 0) {
+                Log.output("ERROR\tIterative lookups (-i) cannot be combined with -o or -l");
+                Log.flush(1000);
+                System.exit(1);
+            }
+            if (dnsClient.inputFile != null) {
+                dnsClient.resolveBatchIterative();
+            } else {
+                dnsClient.resolveIterative();
+            }
+            return;
+        }
+
+        // resolve every name in the input file over a single socket, into a results file if one is given
+        if (dnsClient.inputFile != null && dnsClient.outputFile != null) {
+            dnsClient.resolveBulk();
+            return;
+        }
+        if (dnsClient.inputFile != null) {
+            dnsClient.resolveBatch();
+            return;
+        }
+
+        // serve queries from other processes until killed
+        if (dnsClient.listenPort != 0) {
+            dnsClient.serve();
+            return;
+        }
 
         // construct the dns request
         byte[] sendData = dnsClient.constructRequest();
@@ -75,7 +178,7 @@ public class DnsClient {
                     try {
                         timeout = Integer.parseInt(args[i]);
                     } catch (NumberFormatException e) {
-                        System.out.println("ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name");
+                        System.out.println(USAGE);
                         System.exit(1);
                     }
                 }
@@ -86,7 +189,18 @@ public class DnsClient {
                     try {
                         maxRetries = Integer.parseInt(args[i]);
                     } catch (NumberFormatException e) {
-                        System.out.println("ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name");
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                }
+
+                // total deadline per lookup
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("d")) {
+                    i++;
+                    try {
+                        deadline = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(USAGE);
                         System.exit(1);
                     }
                 }
@@ -97,7 +211,92 @@ public class DnsClient {
                     try {
                         port = Integer.parseInt(args[i]);
                     } catch (NumberFormatException e) {
-                        System.out.println("ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name");
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                }
+
+                // EDNS0 UDP payload size (0 disables EDNS)
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("e")) {
+                    i++;
+                    try {
+                        udpPayloadSize = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    if (udpPayloadSize != 0 && (udpPayloadSize < DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE || udpPayloadSize > 0xffff)) {
+                        System.out.println("ERROR\tEDNS payload size must be 0 or between 512 and 65535");
+                        System.exit(1);
+                    }
+                }
+
+                // iterative resolution from root hints
+                else if (args[i].equals("-i")) {
+                    iterative = true;
+                }
+
+                // batch input file
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("f")) {
+                    i++;
+                    if (i >= args.length) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    inputFile = args[i];
+                }
+
+                // batch results file, CSV or JSONL by extension
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("o")) {
+                    i++;
+                    if (i >= args.length) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    outputFile = args[i];
+                }
+
+                // batch window (max queries in flight)
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("w")) {
+                    i++;
+                    try {
+                        maxInFlight = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    if (maxInFlight < 1) {
+                        System.out.println("ERROR\tBatch window must be at least 1");
+                        System.exit(1);
+                    }
+                }
+
+                // batch hedge delay, as a percentile of the upstream's RTTs (0 disables hedging)
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("h")) {
+                    i++;
+                    try {
+                        hedgePercentile = Double.parseDouble(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    if (hedgePercentile < 0 || hedgePercentile > 100) {
+                        System.out.println("ERROR\tHedge percentile must be between 0 and 100");
+                        System.exit(1);
+                    }
+                }
+
+                // forwarder mode, listening on this port
+                else if (args[i].length() >= 2 && args[i].substring(1, 2).equals("l")) {
+                    i++;
+                    try {
+                        listenPort = Integer.parseInt(args[i]);
+                    } catch (NumberFormatException e) {
+                        System.out.println(USAGE);
+                        System.exit(1);
+                    }
+                    if (listenPort <= 0 || listenPort > 0xffff) {
+                        System.out.println("ERROR\tListen port must be between 1 and 65535");
                         System.exit(1);
                     }
                 }
@@ -116,7 +315,7 @@ public class DnsClient {
 
                 // incorrect input error
                 else {
-                    System.out.println("ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name");
+                    System.out.println(USAGE);
                     System.exit(1);
                 }
             }
@@ -125,104 +324,126 @@ public class DnsClient {
             else if (args[i].substring(0, 1).equals("@")) {
                 args[i] = args[i].substring(1);
                 server = args[i];
-                String[] ipAddrString = args[i].split("\\.");
 
-                if (ipAddrString.length != 4) {
-                    System.out.println("ERROR\tInvalid IP Address");
-                    System.exit(1);
-                }
+                // several upstreams may be given, separated by commas; single lookups use the first
+                for (String address : args[i].split(",")) {
+                    String[] ipAddrString = address.split("\\.");
 
-                for (int num = 0; num < ipAddrString.length; num++) {
-                    int ipByte = Integer.parseInt(ipAddrString[num]);
-                    if (ipByte > 255) {
+                    if (ipAddrString.length != 4) {
                         System.out.println("ERROR\tInvalid IP Address");
                         System.exit(1);
                     }
-                    ipAddressByte[num] = (byte) ipByte;
-                }
 
-                try {
-                    ipDns = InetAddress.getByAddress(ipAddressByte);
-                } catch (UnknownHostException e) {
-                    System.out.println("ERROR\tIP Address is of illegal length");
+                    for (int num = 0; num < ipAddrString.length; num++) {
+                        int ipByte = Integer.parseInt(ipAddrString[num]);
+                        if (ipByte > 255) {
+                            System.out.println("ERROR\tInvalid IP Address");
+                            System.exit(1);
+                        }
+                        ipAddressByte[num] = (byte) ipByte;
+                    }
+
+                    try {
+                        upstreams.add(InetAddress.getByAddress(ipAddressByte));
+                    } catch (UnknownHostException e) {
+                        System.out.println("ERROR\tIP Address is of illegal length");
+                    }
                 }
-                
-                i++;
+                ipDns = upstreams.isEmpty() ? null : upstreams.get(0);
 
-                domainName = args[i];
+                // names come from the input file in batch mode, and from clients in forwarder mode
+                if (inputFile == null && listenPort == 0) {
+                    i++;
+                    domainName = args[i];
+                }
             }
 
             // incorrect input error
             else {
-                System.out.println("ERROR\tIncorrect input format. Use: java DnsClient [-t timeout] [-r max-retries] [-p port] [-mx|-ns] @server name");
+                System.out.println(USAGE);
                 System.exit(1);
             }
         }
     }
 
-    public byte[] constructRequest() throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-        DataOutputStream dataOut = new DataOutputStream(outputStream);
-
-        // header
-        dataOut.writeShort(queryId); // id
-        dataOut.writeShort(0x0100); // line 2
-        dataOut.writeShort(0x0001); // QDCOUNT
-        dataOut.writeShort(0x0000); // ANCOUNT
-        dataOut.writeShort(0x0000); // NSCOUNT
-        dataOut.writeShort(0x0000); // ARCOUNT
-
-        // QNAME
-        String[] labels = domainName.split("\\."); // assuming max 10 labels
-        for (String label : labels) {
-            dataOut.writeByte(label.length());
-            for (int i = 0; i < label.length(); i++) {
-                dataOut.writeByte(label.charAt(i));
-            }
-        }
-        dataOut.writeByte(0); // terminating character
-
-        // QTYPE
-        dataOut.writeShort(qType);
-
-        // QCLASS
-        dataOut.writeShort(0x0001);
+    public byte[] constructRequest() {
+        return constructRequest(queryId, domainName, qType, udpPayloadSize);
+    }
 
-        dataOut.flush();
-        dataOut.close();
-        outputStream.close();
+    public static byte[] constructRequest(short queryId, String domainName, short qType) {
+        return constructRequest(queryId, domainName, qType, 0);
+    }
 
-        return outputStream.toByteArray();
+    // Adds an EDNS0 OPT record advertising udpPayloadSize, unless it is 0
+    public static byte[] constructRequest(short queryId, String domainName, short qType, int udpPayloadSize) {
+        byte[] request = new byte[DnsCodec.queryLength(domainName, udpPayloadSize)];
+        DnsCodec.encodeQuery(ByteBuffer.wrap(request), queryId, DnsCodec.FLAG_RD, domainName, qType,
+                udpPayloadSize);
+        return request;
     }
 
     public void sendRequest(byte[] sendData) throws IOException {
         // Create a UDP socket
-        DatagramSocket clientSocket = new DatagramSocket(1024);
-        byte[] receiveData = new byte[1024];
+        DatagramSocket clientSocket = new DatagramSocket();
+        byte[] receiveData = new byte[Math.max(DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE, udpPayloadSize)];
 
         long startTime = 0;
         long endTime = 0;
 
         startTime = System.currentTimeMillis();
 
+        // Retransmission timeouts start at the initial RTO and back off up to the timeout
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(timeout);
+        long rto = Math.min(DnsUpstream.INITIAL_RTO, timeoutNanos);
+        long deadlineTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(deadline);
+        boolean pastDeadline = false;
+
         // Create and Send Packet
         for (retries = 0; retries < maxRetries; retries++) {
+            long remaining = deadlineTime - System.nanoTime();
+            if (remaining <= 0) {
+                pastDeadline = true;
+                break;
+            }
+            long attemptTimeout = Math.min(remaining, DnsUpstream.backoff(rto, retries, timeoutNanos));
 
             sendPacket = new DatagramPacket(sendData, sendData.length, ipDns, port);
             clientSocket.send(sendPacket);
+            long sentAt = System.nanoTime();
+            PACKETS_OUT.increment();
+            BYTES_OUT.add(sendData.length);
+            if (retries > 0) {
+                RETRANSMISSIONS.increment();
+            }
             receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            clientSocket.setSoTimeout(timeout * 1000);
+            clientSocket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(attemptTimeout)));
 
             try {
                 clientSocket.receive(receivePacket);
+            } catch (SocketTimeoutException e) {
+                TIMEOUTS.increment();
+                continue;
             } catch (Exception e) {
+                ERRORS.increment();
                 continue;
             }
+            RTT_NANOS.record(System.nanoTime() - sentAt);
+            PACKETS_IN.increment();
+            BYTES_IN.add(receivePacket.getLength());
 
             if (receivePacket != null)
                 break;
         }
 
+        // Truncated responses are fetched again in full over TCP
+        if (retries < maxRetries && !pastDeadline && receivePacket.getLength() >= DnsCodec.HEADER_LENGTH
+                && (DnsCodec.flags(ByteBuffer.wrap(receiveData)) & DnsCodec.FLAG_TC) != 0) {
+            TCP_FALLBACKS.increment();
+            byte[] tcpData = DnsTcpPool.exchange(ipDns, port, sendData, timeout * 1000);
+            BYTES_IN.add(tcpData.length);
+            receivePacket = new DatagramPacket(tcpData, tcpData.length);
+        }
+
         endTime = System.currentTimeMillis();
 
         // Close the socket
@@ -230,205 +451,495 @@ public class DnsClient {
 
         duration = (double) (endTime - startTime)/1000.0;
 
-        System.out.println("DnsClient sending request for " + domainName);
-        System.out.println("Server: " + server);
-        System.out.println("Request type: " + qTypeStr);
+        Log.output("DnsClient sending request for " + domainName);
+        Log.output("Server: " + server);
+        Log.output("Request type: " + qTypeStr);
+
+        if (pastDeadline) {
+            Log.output("ERROR\tDeadline of " + deadline + " seconds exceeded after " + retries + " retries");
+            System.exit(1);
+        }
 
         if (retries == maxRetries) {
-            System.out.println("ERROR\tMaximum number of retries " + retries + " exceeded");
+            Log.output("ERROR\tMaximum number of retries " + retries + " exceeded");
             System.exit(1);
         }
     }
 
+    public void resolveBatch() throws IOException, InterruptedException {
+        List<String> names = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(inputFile));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                names.add(line);
+            }
+        }
+        in.close();
+
+        Log.output("DnsClient sending " + names.size() + " requests from " + inputFile);
+        Log.output("Server: " + server);
+        Log.output("Request type: " + qTypeStr);
+
+        long startTime = System.nanoTime();
+
+        DnsCache cache = new DnsCache(CACHE_MAX_BYTES, NEGATIVE_TTL);
+        DnsBatchResolver resolver = new DnsBatchResolver(upstreamAddresses(), timeout * 1000, maxRetries, maxInFlight,
+                udpPayloadSize);
+        resolver.setCache(cache);
+        resolver.setHedgePercentile(hedgePercentile);
+        resolver.setDeadline(deadline * 1000);
+        publishResolverMetrics(cache, resolver.getStats());
+
+        // lookup latencies; cache hits complete on this thread, the rest on the event loop
+        List<Double> durations = Collections.synchronizedList(new ArrayList<Double>());
+        resolver.resolve(names, qType, lookup -> {
+            durations.add(lookup.getDuration());
+            printLookup(lookup);
+        });
+        resolver.close();
+
+        double elapsed = (double) (System.nanoTime() - startTime) / 1e9;
+        Log.output("Resolved " + names.size() + " names in " + elapsed + " seconds ("
+                + (int) (names.size() / elapsed) + " lookups/s)");
+
+        if (!durations.isEmpty()) {
+            Collections.sort(durations);
+            Log.output("Latency: p50 " + percentile(durations, 50) + " s, p99 " + percentile(durations, 99)
+                    + " s, max " + durations.get(durations.size() - 1) + " s");
+        }
+        Log.output(cache.toString());
+        Log.output(resolver.getStats().toString());
+        for (DnsUpstream upstream : resolver.getUpstreams()) {
+            Log.output("Upstream " + upstream);
+        }
+    }
+
+    /**
+     * Streams the input file into the results file through a DnsBulkResolver,
+     * resuming from its checkpoint if an earlier run was stopped. Only the
+     * summary is printed.
+     */
+    public void resolveBulk() throws IOException, InterruptedException {
+        DnsBatchResolver resolver = new DnsBatchResolver(upstreamAddresses(), timeout * 1000, maxRetries, maxInFlight,
+                udpPayloadSize);
+        resolver.setHedgePercentile(hedgePercentile);
+        resolver.setDeadline(deadline * 1000);
+        publishResolverMetrics(null, resolver.getStats());
+
+        DnsBulkResolver bulk;
+        try {
+            bulk = new DnsBulkResolver(resolver, qType, Paths.get(inputFile), Paths.get(outputFile));
+        } catch (IllegalArgumentException e) {
+            Log.output("ERROR\t" + e.getMessage());
+            Log.flush(1000);
+            System.exit(1);
+            return;
+        }
+
+        Log.output("DnsClient resolving names from " + inputFile + " into " + outputFile);
+        Log.output("Server: " + server);
+        Log.output("Request type: " + qTypeStr);
+
+        try {
+            bulk.run();
+        } finally {
+            resolver.close();
+        }
+
+        Log.output(bulk.toString());
+        Log.output(resolver.getStats().toString());
+        for (DnsUpstream upstream : resolver.getUpstreams()) {
+            Log.output("Upstream " + upstream);
+        }
+    }
+
+    /**
+     * Resolves the command line name iteratively, printing the zones it was
+     * referred through before the final response.
+     */
+    public void resolveIterative() throws IOException {
+        DnsIterativeResolver resolver = new DnsIterativeResolver(upstreamAddresses(), timeout * 1000, maxRetries,
+                udpPayloadSize);
+        resolver.setDeadline(deadline * 1000);
+
+        List<String> trace = new ArrayList<String>();
+        DnsAnswer answer = resolver.resolve(domainName, qType, trace);
+        DnsResponse response = answer.getResponse();
+
+        Log.output("DnsClient resolving " + domainName + " iteratively");
+        Log.output("Root hints: " + server);
+        Log.output("Request type: " + qTypeStr);
+        for (String step : trace) {
+            Log.output(step);
+        }
+
+        retries = answer.getRetries();
+        duration = answer.getDuration();
+        if (response == null) {
+            Log.output("ERROR\tIterative resolution failed after " + retries + " retries");
+            Log.flush(1000);
+            System.exit(1);
+        }
+
+        // print the final response as if it had answered a single query
+        byte[] message = response.getMessage();
+        receivePacket = new DatagramPacket(message, message.length);
+        queryId = response.getId();
+        processResponsePacket();
+    }
+
+    /**
+     * Resolves the names in the input file iteratively, one at a time, so
+     * that each lookup can start from the delegations the earlier ones found.
+     */
+    public void resolveBatchIterative() throws IOException {
+        List<String> names = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(inputFile));
+        String line;
+        while ((line = in.readLine()) != null) {
+            line = line.trim();
+            if (!line.isEmpty()) {
+                names.add(line);
+            }
+        }
+        in.close();
+
+        Log.output("DnsClient resolving " + names.size() + " names from " + inputFile + " iteratively");
+        Log.output("Root hints: " + server);
+        Log.output("Request type: " + qTypeStr);
+
+        DnsIterativeResolver resolver = new DnsIterativeResolver(upstreamAddresses(), timeout * 1000, maxRetries,
+                udpPayloadSize);
+        resolver.setDeadline(deadline * 1000);
+
+        long startTime = System.nanoTime();
+        List<Double> durations = new ArrayList<Double>();
+        for (String name : names) {
+            DnsAnswer answer = resolver.resolve(name, qType);
+            durations.add(answer.getDuration());
+            printLookup(name, answer.getRetries(), answer.getResponse());
+        }
+
+        double elapsed = (double) (System.nanoTime() - startTime) / 1e9;
+        Log.output("Resolved " + names.size() + " names in " + elapsed + " seconds ("
+                + (int) (names.size() / elapsed) + " lookups/s)");
+
+        if (!durations.isEmpty()) {
+            Collections.sort(durations);
+            Log.output("Latency: p50 " + percentile(durations, 50) + " s, p99 " + percentile(durations, 99)
+                    + " s, max " + durations.get(durations.size() - 1) + " s");
+        }
+        Log.output(resolver.toString());
+    }
+
+    /**
+     * Runs as a caching forwarder on the listen port. Statistics are printed
+     * when the process is stopped.
+     */
+    public void serve() throws IOException {
+        DnsCache cache = new DnsCache(CACHE_MAX_BYTES, NEGATIVE_TTL);
+        AsyncDnsResolver resolver = new AsyncDnsResolver(upstreamAddresses(), timeout * 1000, maxRetries,
+                udpPayloadSize);
+        resolver.setCache(cache);
+        resolver.setHedgePercentile(hedgePercentile);
+        resolver.setDeadline(deadline * 1000);
+        publishResolverMetrics(cache, resolver.getStats());
+
+        DnsForwarder forwarder = new DnsForwarder(listenPort, resolver);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            forwarder.close();
+            try {
+                resolver.close();
+            } catch (IOException e) {
+                // exiting anyway
+            }
+            Log.output(cache.toString());
+            Log.output(resolver.getStats().toString());
+            for (DnsUpstream upstream : resolver.getUpstreams()) {
+                Log.output("Upstream " + upstream);
+            }
+            // the other hooks, including the one flushing the log, run at the same time
+            Log.flush(1000);
+        }));
+
+        Log.output("DnsClient forwarding queries on port " + forwarder.getPort());
+        Log.output("Server: " + server);
+        forwarder.serve();
+    }
+
+    // Cache (if any) and retry counters, read from their owners only when queried
+    private static void publishResolverMetrics(DnsCache cache, DnsRetryStats stats) {
+        Metrics metrics = Metrics.forComponent("DnsResolver");
+        if (cache != null) {
+            metrics.gauge("cacheHits", cache::getHits);
+            metrics.gauge("cacheMisses", cache::getMisses);
+            metrics.gauge("cacheEvictions", cache::getEvictions);
+            metrics.gauge("cacheExpirations", cache::getExpirations);
+            metrics.gauge("cacheEntries", cache::size);
+            metrics.gauge("cacheBytes", cache::getBytes);
+        }
+        metrics.gauge("lookups", stats::getLookups);
+        metrics.gauge("transmissions", stats::getTransmissions);
+        metrics.gauge("retransmissions", stats::getRetransmissions);
+        metrics.gauge("timeouts", stats::getTimeouts);
+        metrics.gauge("hedges", stats::getHedges);
+        metrics.gauge("retriesExhausted", stats::getRetriesExhausted);
+        metrics.gauge("deadlinesExceeded", stats::getDeadlinesExceeded);
+        metrics.gauge("malformed", stats::getMalformed);
+    }
+
+    private List<InetSocketAddress> upstreamAddresses() {
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        for (InetAddress upstream : upstreams) {
+            servers.add(new InetSocketAddress(upstream, port));
+        }
+        return servers;
+    }
+
+    // nearest-rank percentile of an ascending list
+    private static double percentile(List<Double> sorted, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    private static void printLookup(DnsBatchResolver.Lookup lookup) {
+        printLookup(lookup.getName(), lookup.getRetries(), lookup.getResponse());
+    }
+
+    private static void printLookup(String name, int retries, DnsResponse response) {
+        StringBuilder out = new StringBuilder();
+
+        if (response == null) {
+            out.append(name).append("\tERROR\tMaximum number of retries ").append(retries)
+                    .append(" exceeded\n");
+        } else if (response.getRCode() == 3) {
+            out.append(name).append("\tNOTFOUND\n");
+        } else if (rCodeMessage(response.getRCode()) != null) {
+            out.append(name).append("\tERROR\t").append(rCodeMessage(response.getRCode())).append('\n');
+        } else {
+            for (DnsRecord record : response.getAnswers()) {
+                String formatted = record.format(response.isAuthoritative());
+                if (formatted != null) {
+                    out.append(name).append('\t').append(formatted).append('\n');
+                }
+            }
+        }
+
+        if (out.length() > 0) {
+            out.setLength(out.length() - 1);
+            Log.output(out.toString());
+        }
+    }
+
     public void processResponsePacket() throws IOException {
         if (receivePacket == null) {
-            System.out.println("ERROR\tFailed to connect to DNS Server");
+            Log.output("ERROR\tFailed to connect to DNS Server");
             System.exit(1);
         } else {
-            int answerIndex = sendPacket.getLength(); // answer will begin at this index
+            ByteBuffer response = ByteBuffer.wrap(receivePacket.getData(), 0, receivePacket.getLength());
+            RESPONSE_BYTES.record(receivePacket.getLength());
+            DnsCodec codec = new DnsCodec();
+            codec.reset(response);
 
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(receivePacket.getData());
-            DataInputStream dataIn = new DataInputStream(inputStream);
+            int answerIndex = codec.answerOffset(); // answer will begin at this index
 
-            short responseId = dataIn.readShort();
+            short responseId = (short) DnsCodec.queryId(response);
 
             // Check that response ID matches the query ID
             if (responseId != queryId) {
-                System.out.println("ERROR\tInvalid response ID");
+                ERRORS.increment();
+                Log.output("ERROR\tInvalid response ID");
                 System.exit(1);
             }
 
-            short header2 = dataIn.readShort();
-            int aa = (header2 & 0x0400) >> 10;
-            int ra = (header2 & 0x0080) >> 7;
-            int rcode = header2 & 0x000f;
-            dataIn.skipBytes(2);
-            short ancount = dataIn.readShort();
-            short nscount = dataIn.readShort();
-            short arcount = dataIn.readShort();
-
-            inputStream.close();
-            dataIn.close();
-
-            if (ra == 0) {
-                System.out.println("ERROR\tThe server does not support recursive queries");
+            int header2 = DnsCodec.flags(response);
+            int aa = (header2 & DnsCodec.FLAG_AA) >> 10;
+            int ra = (header2 & DnsCodec.FLAG_RA) >> 7;
+            int rcode = header2 & DnsCodec.RCODE_MASK;
+            int ancount = DnsCodec.anCount(response);
+            int nscount = DnsCodec.nsCount(response);
+            int arcount = DnsCodec.arCount(response);
+
+            // an authoritative server answers for its own zones without recursion, and iterative lookups never ask for it
+            if (ra == 0 && aa == 0 && !iterative) {
+                Log.output("ERROR\tThe server does not support recursive queries");
                 System.exit(1);
             }
 
+            if (rcode != 0) {
+                ERRORS.increment();
+            }
             processRCode(rcode);
 
-            System.out.println("Response received after " + duration + " seconds (" + retries + " retries)");
-            System.out.println("***Answer Section (" + ancount + " records)***");
+            Log.output("Response received after " + duration + " seconds (" + retries + " retries)");
+            Log.output("***Answer Section (" + ancount + " records)***");
 
             // Parse Answer Records
             for (int record = 0; record < ancount; record++) {
-                answerIndex += parseRecord(receivePacket, answerIndex, aa);
+                answerIndex += parseRecord(codec, answerIndex, aa);
             }
 
             // Skip over authority section
             for (int record = 0; record < nscount; record++) {
-                answerIndex += getRecordLength(receivePacket, answerIndex);
+                answerIndex += getRecordLength(codec, answerIndex);
             }
 
-            System.out.println("***Additional Section (" + arcount + " records)***");
+            Log.output("***Additional Section (" + arcount + " records)***");
 
             // Parse Additional Records
             for (int record = 0; record < arcount; record++) {
-                answerIndex += parseRecord(receivePacket, answerIndex, aa);
+                answerIndex += parseRecord(codec, answerIndex, aa);
             }
         }
     }
 
     private static void processRCode(int rcode) {
-        switch (rcode) {
-        case 0:
-            break;
+        if (rcode == 3) {
+            Log.output("NOTFOUND");
+            System.exit(3);
+        }
+
+        String message = rCodeMessage(rcode);
+        if (message != null) {
+            Log.output("ERROR\t" + message);
+            System.exit(rcode);
+        }
+    }
 
+    // Returns the error message for a response code, or null if it is not an error
+    private static String rCodeMessage(int rcode) {
+        switch (rcode) {
         case 1:
-            System.out.println("ERROR\tThe name server was unable to interpret the query");
-            System.exit(1);
+            return "The name server was unable to interpret the query";
 
         case 2:
-            System.out.println(
-                    "ERROR\tThe name server was unable to process this query due to a problem with the name server");
-            System.exit(2);
+            return "The name server was unable to process this query due to a problem with the name server";
 
         case 3:
-            System.out.println("NOTFOUND");
-            System.exit(3);
+            return "Name not found";
 
         case 4:
-            System.out.println("ERROR\tThe name server does not support the requested kind of query");
-            System.exit(4);
+            return "The name server does not support the requested kind of query";
 
         case 5:
-            System.out.println("ERROR\tThe name server refuses to perform the requested operation for policy reasons");
-            System.exit(5);
+            return "The name server refuses to perform the requested operation for policy reasons";
+
+        default:
+            return null;
         }
     }
 
-    private static int parseRecord(DatagramPacket packet, int offset, int aa) throws IOException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(packet.getData(), offset,
-                packet.getLength() - offset);
-        DataInputStream dataIn = new DataInputStream(inputStream);
+    /**
+     * Decodes a response packet without printing or exiting, so it can be used
+     * for lookups that are not the single command line query.
+     */
+    public static DnsResponse parseResponse(byte[] data, int length) throws IOException {
+        return parseResponse(ByteBuffer.wrap(data, 0, length), new DnsCodec());
+    }
 
-        short name = dataIn.readShort();
-        short type = dataIn.readShort();
-        short classIn = dataIn.readShort();
-        int ttl = dataIn.readInt();
-        short dataLength = dataIn.readShort();
+    /**
+     * Decodes the response held between index 0 and the buffer's limit using a
+     * caller-owned codec.
+     */
+    public static DnsResponse parseResponse(ByteBuffer buf, DnsCodec codec) throws IOException {
+        codec.reset(buf);
+
+        int header2 = DnsCodec.flags(buf);
+        List<DnsRecord> answers = new ArrayList<DnsRecord>(DnsCodec.anCount(buf));
+        List<DnsRecord> additional = new ArrayList<DnsRecord>(DnsCodec.arCount(buf));
+        int rcode = header2 & DnsCodec.RCODE_MASK;
+        int udpPayloadSize = 0;
+
+        // authority records are skipped
+        while (codec.nextRecord()) {
+            if (codec.section() == DnsCodec.SECTION_ANSWER) {
+                answers.add(readRecord(codec));
+            } else if (codec.section() == DnsCodec.SECTION_ADDITIONAL) {
+                DnsRecord record = readRecord(codec);
+                additional.add(record);
+
+                // OPT carries the upper 8 bits of the RCODE in the top of its TTL
+                if (record.getType() == DnsRecord.TYPE_OPT) {
+                    udpPayloadSize = record.getRecordClass() & 0xffff;
+                    rcode |= (record.getTtl() >>> 24) << 4;
+                }
+            }
+        }
+
+        byte[] message = new byte[buf.limit()];
+        buf.get(0, message);
 
-        int recordLength = 12 + dataLength;
+        return new DnsResponse((short) DnsCodec.queryId(buf), (header2 & DnsCodec.FLAG_AA) != 0,
+                (header2 & DnsCodec.FLAG_RA) != 0, rcode, answers, additional, udpPayloadSize, message,
+                System.nanoTime());
+    }
+
+    private static int parseRecord(DnsCodec codec, int offset, int aa) throws IOException {
+        codec.readRecordAt(offset);
+        DnsRecord record = readRecord(codec);
 
-        if (classIn != 1) {
-            System.out.println("ERROR\tUnexpected CLASS code");
+        if (record.getRecordClass() != DnsCodec.CLASS_IN && record.getType() != DnsRecord.TYPE_OPT) {
+            Log.output("ERROR\tUnexpected CLASS code");
             System.exit(1);
         }
 
-        String auth = aa == 1 ? "auth" : "nonauth";
-
-        switch (type) {
-        case 0x0001: // A
-            int data0 = dataIn.readByte() & 0xff;
-            int data1 = dataIn.readByte() & 0xff;
-            int data2 = dataIn.readByte() & 0xff;
-            int data3 = dataIn.readByte() & 0xff;
-            System.out.println("IP\t" + data0 + "." + data1 + "." + data2 + "." + data3 + "\t " + ttl + "\t" + auth);
-            break;
+        String formatted = record.format(aa == 1);
+        if (formatted == null) {
+            Log.output("ERROR\tInvalid record type");
+        } else {
+            Log.output(formatted);
+        }
 
-        case 0x0002: // NS
-            offset += 12;
-            String nameNs = getName(packet, offset);
-            System.out.println("NS\t" + nameNs + "\t" + ttl + "\t" + auth);
-            break;
+        return record.getLength();
+    }
 
-        case 0x000f: // MX
-            short preference = dataIn.readShort();
-            offset += 14;
-            String nameMx = getName(packet, offset);
-            System.out.println("MX\t" + nameMx + "\t" + preference + "\t" + ttl + "\t" + auth);
-            break;
+    // Materializes the record the codec is positioned on
+    static DnsRecord readRecord(DnsCodec codec) throws IOException {
+        ByteBuffer buf = codec.buffer();
+        int rdataIndex = codec.rdataOffset();
 
-        case 0x0005: // CNAME
-            offset += 12;
-            String nameCname = getName(packet, offset);
-            System.out.println("CNAME\t" + nameCname + "\t" + ttl + "\t" + auth);
-            break;
+        short preference = 0;
+        String value = null;
 
-        default:
-            System.out.println("ERROR\tInvalid record type");
+        // RDATA has to be long enough for the fields read from it
+        int rdataLength = codec.rdataLength();
+        if ((codec.type() == DnsRecord.TYPE_A && rdataLength != 4)
+                || (codec.type() == DnsRecord.TYPE_MX && rdataLength < 3)
+                || ((codec.type() == DnsRecord.TYPE_NS || codec.type() == DnsRecord.TYPE_CNAME) && rdataLength < 1)) {
+            throw new IOException("Record of type " + codec.type() + " with RDLENGTH " + rdataLength);
         }
 
-        inputStream.close();
-        dataIn.close();
+        switch (codec.type()) {
+        case DnsRecord.TYPE_A:
+            int data0 = buf.get(rdataIndex) & 0xff;
+            int data1 = buf.get(rdataIndex + 1) & 0xff;
+            int data2 = buf.get(rdataIndex + 2) & 0xff;
+            int data3 = buf.get(rdataIndex + 3) & 0xff;
+            value = data0 + "." + data1 + "." + data2 + "." + data3;
+            break;
 
-        return recordLength;
-    }
+        case DnsRecord.TYPE_NS:
+        case DnsRecord.TYPE_CNAME:
+            value = getName(codec.names(), rdataIndex);
+            break;
 
-    private static String getName(DatagramPacket packet, int offset) {
-        String name = "";
-        byte[] pointerBytes = packet.getData();
-        int labelLen = 0; // tracks the remaing length of a label
-        int index = 0; // index of a label
-
-        while (pointerBytes[offset + index] != 0) {
-            // Check if the label has been read through
-            if (labelLen == 0) {
-                if (index != 0) {
-                    name += ".";
-                }
-                labelLen = pointerBytes[offset + index];
-            } 
-            
-            // Check if there is a pointer
-            else if ((labelLen & 0xc0) == 0xc0) {
-                offset = ((labelLen & 0x0000003f) << 8) + (pointerBytes[offset + index] & 0xff);
-                labelLen = pointerBytes[offset];
-                index = 0;
-            } 
-            
-            // read in the characters of the label
-            else {
-                name += (char) pointerBytes[offset + index];
-                labelLen--;
-            }
-            index++;
+        case DnsRecord.TYPE_MX:
+            preference = (short) codec.preference();
+            value = getName(codec.names(), rdataIndex + 2);
+            break;
         }
 
-        return name;
+        return new DnsRecord(codec.type(), codec.recordClass(), codec.ttl(), preference, value, codec.recordLength());
     }
 
-    private static int getRecordLength(DatagramPacket packet, int offset) throws IOException {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(packet.getData(), offset + 10,
-                packet.getLength() - offset);
-        DataInputStream dataIn = new DataInputStream(inputStream);
-
-        short dataLength = dataIn.readShort();
-        int recordLength = 12 + dataLength;
-
-        inputStream.close();
-        dataIn.close();
+    static String getName(DnsNameDecoder names, int offset) throws IOException {
+        return names.decodeToString(offset);
+    }
 
-        return recordLength;
+    static int getRecordLength(DnsCodec codec, int offset) throws IOException {
+        codec.readRecordAt(offset);
+        return codec.recordLength();
     }
 }
@@ -0,0 +1,408 @@
+/**
+ * DNS Codec
+ *
+ * Encodes queries into a caller supplied ByteBuffer and decodes responses in
+ * place using absolute-index reads, so neither direction allocates once the
+ * buffers and the codec itself are set up. Works on heap or direct buffers.
+ *
+ * A codec instance is a cursor over the resource records of one message:
+ *
+ *     codec.reset(buffer);
+ *     while (codec.nextRecord()) {
+ *         ... codec.type(), codec.ttl(), codec.rdataOffset() ...
+ *     }
+ *
+ * Instances are not thread safe; keep one per thread and reuse it.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public final class DnsCodec {
+
+    public static final int HEADER_LENGTH = 12;
+
+    // Header flag bits
+    public static final int FLAG_QR = 0x8000;
+    public static final int FLAG_AA = 0x0400;
+    public static final int FLAG_TC = 0x0200;
+    public static final int FLAG_RD = 0x0100;
+    public static final int FLAG_RA = 0x0080;
+    public static final int OPCODE_MASK = 0x7800;
+    public static final int RCODE_MASK = 0x000f;
+
+    // Sections reported by section()
+    public static final int SECTION_ANSWER = 0;
+    public static final int SECTION_AUTHORITY = 1;
+    public static final int SECTION_ADDITIONAL = 2;
+
+    public static final short CLASS_IN = 0x0001;
+
+    // EDNS0 OPT pseudo-record (RFC 6891): root name, type, class, TTL, RDLENGTH
+    public static final short TYPE_OPT = 41;
+    public static final int OPT_LENGTH = 11;
+
+    // Payload sizes: the classic limit without EDNS, and the usual EDNS default
+    public static final int CLASSIC_UDP_PAYLOAD_SIZE = 512;
+    public static final int DEFAULT_UDP_PAYLOAD_SIZE = 1232;
+
+    // Decodes names out of the current message
+    private final DnsNameDecoder names = new DnsNameDecoder();
+
+    // Message being decoded
+    private ByteBuffer buffer;
+    private int limit;
+    private final int[] sectionCounts = new int[3];
+    private int section;
+    private int remaining;
+    private int nextOffset;
+    private int answerOffset;
+
+    // Record the cursor is positioned on
+    private int recordOffset;
+    private short type;
+    private short recordClass;
+    private int ttl;
+    private int rdataOffset;
+    private int rdataLength;
+
+    /**
+     * Writes a standard query at the buffer's position and advances the
+     * position past it. Returns the number of bytes written.
+     */
+    public static int encodeQuery(ByteBuffer dst, short queryId, int flags, CharSequence name, short qType) {
+        return encodeQuery(dst, queryId, flags, name, qType, 0);
+    }
+
+    /**
+     * Writes a query that advertises the given UDP payload size in an EDNS0
+     * OPT record, or a plain query if udpPayloadSize is 0.
+     */
+    public static int encodeQuery(ByteBuffer dst, short queryId, int flags, CharSequence name, short qType,
+            int udpPayloadSize) {
+        int start = dst.position();
+        int length = queryLength(name, udpPayloadSize);
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("Buffer too small for query of " + length + " bytes");
+        }
+
+        // header
+        dst.putShort(start, queryId);
+        dst.putShort(start + 2, (short) flags);
+        dst.putShort(start + 4, (short) 1); // QDCOUNT
+        dst.putShort(start + 6, (short) 0); // ANCOUNT
+        dst.putShort(start + 8, (short) 0); // NSCOUNT
+        dst.putShort(start + 10, (short) (udpPayloadSize > 0 ? 1 : 0)); // ARCOUNT
+
+        // QNAME, QTYPE, QCLASS
+        int index = encodeName(dst, start + HEADER_LENGTH, name);
+        dst.putShort(index, qType);
+        dst.putShort(index + 2, CLASS_IN);
+
+        // OPT: root name, requestor's payload size as CLASS, zero TTL and RDATA
+        if (udpPayloadSize > 0) {
+            index += 4;
+            dst.put(index, (byte) 0);
+            dst.putShort(index + 1, TYPE_OPT);
+            dst.putShort(index + 3, (short) udpPayloadSize);
+            dst.putInt(index + 5, 0);
+            dst.putShort(index + 9, (short) 0);
+        }
+
+        dst.position(start + length);
+        return length;
+    }
+
+    // Size of the query encodeQuery would write for this name
+    public static int queryLength(CharSequence name) {
+        return queryLength(name, 0);
+    }
+
+    public static int queryLength(CharSequence name, int udpPayloadSize) {
+        return HEADER_LENGTH + nameLength(name) + 4 + (udpPayloadSize > 0 ? OPT_LENGTH : 0);
+    }
+
+    /**
+     * Writes the uncompressed wire form of a dotted name at an absolute index
+     * and returns the index after it. Empty labels (such as a trailing dot) are
+     * skipped.
+     */
+    public static int encodeName(ByteBuffer dst, int index, CharSequence name) {
+        int labelStart = 0;
+        int length = name.length();
+
+        for (int i = 0; i <= length; i++) {
+            if (i == length || name.charAt(i) == '.') {
+                int labelLen = i - labelStart;
+                if (labelLen > 63) {
+                    throw new IllegalArgumentException("Label longer than 63 characters");
+                }
+                if (labelLen > 0) {
+                    dst.put(index++, (byte) labelLen);
+                    for (int c = labelStart; c < i; c++) {
+                        dst.put(index++, (byte) name.charAt(c));
+                    }
+                }
+                labelStart = i + 1;
+            }
+        }
+        dst.put(index++, (byte) 0); // terminating character
+
+        return index;
+    }
+
+    /**
+     * Throws IllegalArgumentException if a dotted name cannot be encoded: a
+     * label longer than 63 characters or a wire form longer than 255 bytes.
+     */
+    public static void checkName(CharSequence name) {
+        int labelStart = 0;
+        int length = name.length();
+
+        for (int i = 0; i <= length; i++) {
+            if (i == length || name.charAt(i) == '.') {
+                if (i - labelStart > 63) {
+                    throw new IllegalArgumentException("Label longer than 63 characters");
+                }
+                labelStart = i + 1;
+            }
+        }
+        if (nameLength(name) > 255) {
+            throw new IllegalArgumentException("Name longer than 255 bytes");
+        }
+    }
+
+    // Size of the uncompressed wire form of a dotted name
+    public static int nameLength(CharSequence name) {
+        int total = 1;
+        int labelStart = 0;
+        int length = name.length();
+
+        for (int i = 0; i <= length; i++) {
+            if (i == length || name.charAt(i) == '.') {
+                if (i > labelStart) {
+                    total += 1 + i - labelStart;
+                }
+                labelStart = i + 1;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * True if the message in buf has exactly one question and it is for the
+     * given name (ASCII case and a trailing dot ignored), type and class IN.
+     */
+    public static boolean questionMatches(ByteBuffer buf, CharSequence name, short qType) {
+        int limit = buf.limit();
+        if (limit < HEADER_LENGTH || qdCount(buf) != 1) {
+            return false;
+        }
+
+        int index = HEADER_LENGTH;
+        int labelStart = 0;
+        int length = name.length();
+        for (int i = 0; i <= length; i++) {
+            if (i < length && name.charAt(i) != '.') {
+                continue;
+            }
+            int labelLen = i - labelStart;
+            if (labelLen > 0) {
+                if (index + 1 + labelLen > limit || (buf.get(index) & 0xff) != labelLen) {
+                    return false;
+                }
+                for (int c = 0; c < labelLen; c++) {
+                    if (toLower(buf.get(index + 1 + c)) != toLower((byte) name.charAt(labelStart + c))) {
+                        return false;
+                    }
+                }
+                index += 1 + labelLen;
+            }
+            labelStart = i + 1;
+        }
+
+        return index + 5 <= limit && buf.get(index) == 0 && buf.getShort(index + 1) == qType
+                && buf.getShort(index + 3) == CLASS_IN;
+    }
+
+    private static int toLower(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b;
+    }
+
+    public static int queryId(ByteBuffer buf) {
+        return buf.getShort(0) & 0xffff;
+    }
+
+    public static int flags(ByteBuffer buf) {
+        return buf.getShort(2) & 0xffff;
+    }
+
+    public static int qdCount(ByteBuffer buf) {
+        return buf.getShort(4) & 0xffff;
+    }
+
+    public static int anCount(ByteBuffer buf) {
+        return buf.getShort(6) & 0xffff;
+    }
+
+    public static int nsCount(ByteBuffer buf) {
+        return buf.getShort(8) & 0xffff;
+    }
+
+    public static int arCount(ByteBuffer buf) {
+        return buf.getShort(10) & 0xffff;
+    }
+
+    /**
+     * Returns the index of the first byte after the (possibly compressed) name
+     * starting at offset. Does not follow compression pointers.
+     */
+    public static int skipName(ByteBuffer buf, int offset, int limit) throws IOException {
+        while (offset < limit) {
+            int labelLen = buf.get(offset) & 0xff;
+            if (labelLen == 0) {
+                return offset + 1;
+            }
+            if ((labelLen & 0xc0) == 0xc0) {
+                if (offset + 2 > limit) {
+                    break;
+                }
+                return offset + 2;
+            }
+            offset += labelLen + 1;
+        }
+        throw new IOException("Name runs past the end of the packet");
+    }
+
+    /**
+     * Starts decoding the message between index 0 and the buffer's limit. The
+     * question section is skipped and the cursor is left before the first
+     * resource record.
+     */
+    public void reset(ByteBuffer buf) throws IOException {
+        buffer = buf;
+        limit = buf.limit();
+        names.reset(buf);
+
+        if (limit < HEADER_LENGTH) {
+            throw new IOException("Truncated DNS header");
+        }
+
+        sectionCounts[SECTION_ANSWER] = anCount(buf);
+        sectionCounts[SECTION_AUTHORITY] = nsCount(buf);
+        sectionCounts[SECTION_ADDITIONAL] = arCount(buf);
+        section = SECTION_ANSWER;
+        remaining = sectionCounts[SECTION_ANSWER];
+
+        int index = HEADER_LENGTH;
+        for (int question = qdCount(buf); question > 0; question--) {
+            index = skipName(buf, index, limit) + 4;
+        }
+        if (index > limit) {
+            throw new IOException("Question section runs past the end of the packet");
+        }
+        nextOffset = index;
+        answerOffset = index;
+    }
+
+    /**
+     * Advances to the next resource record, moving through the answer,
+     * authority and additional sections in order. Returns false once every
+     * record has been visited.
+     */
+    public boolean nextRecord() throws IOException {
+        while (remaining == 0) {
+            if (section == SECTION_ADDITIONAL) {
+                return false;
+            }
+            section++;
+            remaining = sectionCounts[section];
+        }
+        remaining--;
+
+        readRecordAt(nextOffset);
+        nextOffset = rdataOffset + rdataLength;
+        return true;
+    }
+
+    /**
+     * Positions the cursor on the record starting at an absolute offset,
+     * without changing the section iteration of nextRecord().
+     */
+    public void readRecordAt(int offset) throws IOException {
+        int fieldsIndex = skipName(buffer, offset, limit);
+        if (fieldsIndex + 10 > limit) {
+            throw new IOException("Record runs past the end of the packet");
+        }
+
+        recordOffset = offset;
+        type = buffer.getShort(fieldsIndex);
+        recordClass = buffer.getShort(fieldsIndex + 2);
+        ttl = buffer.getInt(fieldsIndex + 4);
+        rdataLength = buffer.getShort(fieldsIndex + 8) & 0xffff;
+        rdataOffset = fieldsIndex + 10;
+
+        if (rdataOffset + rdataLength > limit) {
+            throw new IOException("Record data runs past the end of the packet");
+        }
+    }
+
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    // name decoder bound to the current message
+    public DnsNameDecoder names() {
+        return names;
+    }
+
+    // index of the first resource record, just after the question section
+    public int answerOffset() {
+        return answerOffset;
+    }
+
+    public int section() {
+        return section;
+    }
+
+    public int recordOffset() {
+        return recordOffset;
+    }
+
+    // number of bytes the current record occupies in the packet
+    public int recordLength() {
+        return rdataOffset + rdataLength - recordOffset;
+    }
+
+    public short type() {
+        return type;
+    }
+
+    public short recordClass() {
+        return recordClass;
+    }
+
+    public int ttl() {
+        return ttl;
+    }
+
+    public int rdataOffset() {
+        return rdataOffset;
+    }
+
+    public int rdataLength() {
+        return rdataLength;
+    }
+
+    // IPv4 address of an A record packed into an int, most significant byte first
+    public int ipv4() {
+        return buffer.getInt(rdataOffset);
+    }
+
+    // preference of an MX record
+    public int preference() {
+        return buffer.getShort(rdataOffset) & 0xffff;
+    }
+}
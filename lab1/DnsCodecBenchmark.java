@@ -0,0 +1,252 @@
+/**
+ * DNS Codec Benchmark
+ *
+ * Microbenchmarks for the encode/decode hot paths of DnsClient, run over the
+ * captured-style response packets in fixtures/. Each benchmark reports
+ * throughput in ops/s and the bytes allocated per operation, measured with the
+ * same per-thread allocation counter the JMH GC profiler reads.
+ *
+ * Usage: java DnsCodecBenchmark [-w warmup-iterations] [-i iterations]
+ *                               [-t millis-per-iteration] [-f filter] [fixtures-dir]
+ *
+ * Runs entirely offline. Compare the table against a previous run to catch
+ * regressions when the parser changes.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class DnsCodecBenchmark {
+
+    private interface Op {
+        long run() throws IOException;
+    }
+
+    // Operations are run in batches between clock reads
+    private static final int BATCH = 256;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot discard the work
+    private static long sink;
+
+    private int warmupIterations = 5;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private String filter = "";
+    private File fixturesDir = new File("fixtures");
+
+    public static void main(String[] args) throws Exception {
+        DnsCodecBenchmark benchmark = new DnsCodecBenchmark();
+        benchmark.parseInput(args);
+        benchmark.run();
+    }
+
+    private void parseInput(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            try {
+                if (args[i].equals("-w")) {
+                    warmupIterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-i")) {
+                    iterations = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("-t")) {
+                    iterationMillis = Long.parseLong(args[++i]);
+                } else if (args[i].equals("-f")) {
+                    filter = args[++i];
+                } else {
+                    fixturesDir = new File(args[i]);
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("ERROR\tIncorrect input format. Use: java DnsCodecBenchmark [-w warmup-iterations] [-i iterations] [-t millis-per-iteration] [-f filter] [fixtures-dir]");
+                System.exit(1);
+            }
+        }
+    }
+
+    private void run() throws IOException {
+        File[] files = fixturesDir.listFiles((dir, name) -> name.endsWith(".hex"));
+        if (files == null || files.length == 0) {
+            System.out.println("ERROR\tNo .hex fixtures found in " + fixturesDir);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+
+        System.out.printf("%-48s %6s %16s %12s %12s%n", "Benchmark", "Cnt", "Score", "Error", "B/op");
+
+        // Encoding does not depend on the fixtures
+        final ByteBuffer queryBuffer = ByteBuffer.allocate(512);
+        final ByteBuffer directBuffer = ByteBuffer.allocateDirect(512);
+        bench("constructRequest", () -> DnsClient.constructRequest((short) 0x1234, "www.example.com",
+                DnsRecord.TYPE_A).length);
+        bench("encodeQuery:heap", () -> {
+            queryBuffer.clear();
+            return DnsCodec.encodeQuery(queryBuffer, (short) 0x1234, DnsCodec.FLAG_RD, "www.example.com",
+                    DnsRecord.TYPE_A);
+        });
+        bench("encodeQuery:direct", () -> {
+            directBuffer.clear();
+            return DnsCodec.encodeQuery(directBuffer, (short) 0x1234, DnsCodec.FLAG_RD, "www.example.com",
+                    DnsRecord.TYPE_A);
+        });
+
+        for (File file : files) {
+            String fixture = file.getName().substring(0, file.getName().length() - 4);
+            byte[] packet = readHex(file);
+            final ByteBuffer heap = ByteBuffer.wrap(packet);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(packet.length);
+            direct.put(packet).flip();
+            final DnsCodec codec = new DnsCodec();
+
+            // record offsets, for the benchmarks that take one
+            codec.reset(heap);
+            List<Integer> offsets = new ArrayList<Integer>();
+            while (codec.nextRecord()) {
+                offsets.add(codec.recordOffset());
+            }
+            final int firstRecord = offsets.isEmpty() ? heap.limit() : offsets.get(0);
+            final int recordCount = offsets.size();
+
+            bench("parseRecord:" + fixture, () -> {
+                codec.reset(heap);
+                long total = 0;
+                while (codec.nextRecord()) {
+                    total += DnsClient.readRecord(codec).getLength();
+                }
+                return total;
+            });
+
+            bench("getName:" + fixture, () -> {
+                codec.reset(heap);
+                long total = 0;
+                while (codec.nextRecord()) {
+                    short type = codec.type();
+                    if (type == DnsRecord.TYPE_NS || type == DnsRecord.TYPE_CNAME) {
+                        total += DnsClient.getName(codec.names(), codec.rdataOffset()).length();
+                    } else if (type == DnsRecord.TYPE_MX) {
+                        total += DnsClient.getName(codec.names(), codec.rdataOffset() + 2).length();
+                    }
+                }
+                return total;
+            });
+
+            bench("getRecordLength:" + fixture, () -> {
+                codec.reset(heap);
+                int offset = firstRecord;
+                for (int record = 0; record < recordCount; record++) {
+                    offset += DnsClient.getRecordLength(codec, offset);
+                }
+                return offset;
+            });
+
+            bench("parseResponse:" + fixture, () -> DnsClient.parseResponse(heap, codec).getAnswers().size());
+
+            bench("cursor:heap:" + fixture, () -> walk(codec, heap));
+            bench("cursor:direct:" + fixture, () -> walk(codec, direct));
+        }
+
+        if (sink == 42) {
+            System.out.println();
+        }
+    }
+
+    // Visits every record and name without materializing anything
+    private static long walk(DnsCodec codec, ByteBuffer buf) throws IOException {
+        codec.reset(buf);
+        long total = 0;
+        while (codec.nextRecord()) {
+            total += codec.ttl();
+            short type = codec.type();
+            if (type == DnsRecord.TYPE_NS || type == DnsRecord.TYPE_CNAME) {
+                codec.names().decode(codec.rdataOffset());
+                total += codec.names().length();
+            } else if (type == DnsRecord.TYPE_MX) {
+                codec.names().decode(codec.rdataOffset() + 2);
+                total += codec.names().length();
+            }
+        }
+        return total;
+    }
+
+    private void bench(String name, Op op) throws IOException {
+        if (!name.contains(filter)) {
+            return;
+        }
+
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(op);
+        }
+
+        double[] scores = new double[iterations];
+        double allocated = 0;
+        for (int i = 0; i < iterations; i++) {
+            double[] result = iteration(op);
+            scores[i] = result[0];
+            allocated += result[1];
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= iterations;
+
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : 0;
+
+        System.out.printf("%-48s %6d %16.1f %12.1f %12.1f%n", name, iterations, mean, error,
+                allocated / iterations);
+    }
+
+    // Runs the operation for one iteration and returns { ops/s, bytes/op }
+    private double[] iteration(Op op) throws IOException {
+        long threadId = Thread.currentThread().getId();
+        long ops = 0;
+        long acc = 0;
+
+        long allocatedBefore = THREADS.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        long deadline = start + iterationMillis * 1000000L;
+        long now;
+        do {
+            for (int i = 0; i < BATCH; i++) {
+                acc += op.run();
+            }
+            ops += BATCH;
+            now = System.nanoTime();
+        } while (now < deadline);
+        long allocatedAfter = THREADS.getThreadAllocatedBytes(threadId);
+
+        sink += acc;
+        return new double[] { ops * 1e9 / (now - start), (double) (allocatedAfter - allocatedBefore) / ops };
+    }
+
+    // Reads a packet stored as whitespace separated hex bytes, '#' starts a comment
+    static byte[] readHex(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = in.readLine()) != null) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            for (String token : line.trim().split("\\s+")) {
+                if (!token.isEmpty()) {
+                    out.write(Integer.parseInt(token, 16));
+                }
+            }
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,302 @@
+/**
+ * DNS Forwarder
+ *
+ * Long-running caching forwarder. Listens for DNS queries on a UDP and TCP
+ * port of the loopback interface, answers what it can from the resolver's
+ * cache and forwards the rest upstream through an AsyncDnsResolver. Upstream
+ * responses are relayed as received, with the client's query ID, TTLs reduced
+ * by the time spent in the cache, and the OPT record removed for clients that
+ * did not send one. UDP responses too large for the client are cut down to the
+ * question with the TC bit set, so that it asks again over TCP.
+ *
+ * The UDP receive loop follows UDPServer: one socket, one blocking receive per
+ * packet. TCP clients get a thread per connection and may pipeline queries.
+ * Answers are sent from whichever thread completes the lookup.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public class DnsForwarder implements Closeable {
+
+    // Largest query accepted from a client
+    private static final int MAX_QUERY_LENGTH = 4096;
+
+    // Largest message that fits the 2-byte TCP length prefix
+    private static final int MAX_TCP_LENGTH = 0xffff;
+
+    // Idle TCP connections are closed after this long (RFC 7766 6.2.3)
+    private static final int TCP_IDLE_MILLIS = 10000;
+
+    // Response codes sent by the forwarder itself
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NOTIMP = 4;
+
+    // Codec used to rewrite responses, per thread sending them
+    private static final ThreadLocal<DnsCodec> RELAY_CODEC = ThreadLocal.withInitial(DnsCodec::new);
+
+    private final DatagramSocket serverSocket;
+    private final ServerSocket tcpSocket;
+    private final AsyncDnsResolver resolver;
+    private volatile boolean running = true;
+
+    public DnsForwarder(int port, AsyncDnsResolver resolver) throws IOException {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        this.serverSocket = new DatagramSocket(address);
+        this.tcpSocket = new ServerSocket();
+        tcpSocket.setReuseAddress(true);
+        tcpSocket.bind(new InetSocketAddress(address.getAddress(), serverSocket.getLocalPort()));
+        this.resolver = resolver;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Receives and answers queries until the forwarder is closed. UDP is
+     * served on the calling thread, TCP on a background acceptor. A failed
+     * receive is logged and serving goes on.
+     */
+    public void serve() throws IOException {
+        Thread acceptor = new Thread(this::acceptLoop, "dns-forwarder-tcp");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // Allocate space for the received queries
+        byte[] receiveData = new byte[MAX_QUERY_LENGTH];
+        ByteBuffer query = ByteBuffer.wrap(receiveData);
+        DnsCodec codec = new DnsCodec();
+
+        while (running) {
+            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+
+            // Blocks until a query arrives or the socket is closed; other failures only lose that packet
+            try {
+                serverSocket.receive(receivePacket);
+            } catch (IOException e) {
+                if (!running) {
+                    return;
+                }
+                Log.warn("Forwarder receive failed: {}", e);
+                continue;
+            }
+
+            query.clear().limit(receivePacket.getLength());
+            SocketAddress client = receivePacket.getSocketAddress();
+            handleQuery(query, codec, false, reply -> send(reply, client));
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        serverSocket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                Socket connectionSocket = tcpSocket.accept();
+                Thread connection = new Thread(() -> serveConnection(connectionSocket),
+                        "dns-forwarder-" + connectionSocket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.error("ERROR\tForwarder could not accept a connection: {}", e);
+                }
+            }
+        }
+    }
+
+    // Answers length-prefixed queries until the client closes or goes idle
+    private void serveConnection(Socket connectionSocket) {
+        byte[] receiveData = new byte[MAX_TCP_LENGTH];
+        ByteBuffer query = ByteBuffer.wrap(receiveData);
+        DnsCodec codec = new DnsCodec();
+
+        try {
+            connectionSocket.setSoTimeout(TCP_IDLE_MILLIS);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connectionSocket.getOutputStream()));
+
+            while (running) {
+                int length = in.readUnsignedShort();
+                in.readFully(receiveData, 0, length);
+                query.clear().limit(length);
+
+                // replies may complete out of order on other threads
+                handleQuery(query, codec, true, reply -> {
+                    synchronized (out) {
+                        try {
+                            out.writeShort(reply.length);
+                            out.write(reply);
+                            out.flush();
+                        } catch (IOException e) {
+                            // connection gone, the reader will notice
+                        }
+                    }
+                });
+            }
+        } catch (IOException e) {
+            // client closed the connection or went idle
+        } finally {
+            try {
+                connectionSocket.close();
+            } catch (IOException e) {
+                // nothing left to do with it
+            }
+        }
+    }
+
+    private void handleQuery(ByteBuffer query, DnsCodec codec, boolean tcp, Consumer<byte[]> client) {
+        // too short to even carry an ID to answer with, or not a query at all
+        if (query.limit() < DnsCodec.HEADER_LENGTH || (DnsCodec.flags(query) & DnsCodec.FLAG_QR) != 0) {
+            return;
+        }
+
+        short id = (short) DnsCodec.queryId(query);
+        int flags = DnsCodec.flags(query);
+
+        if ((flags & DnsCodec.OPCODE_MASK) != 0) {
+            client.accept(errorReply(id, flags, new byte[0], RCODE_NOTIMP));
+            return;
+        }
+
+        String name;
+        short qType;
+        byte[] question;
+        boolean edns = false;
+        int clientPayloadSize = DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE;
+
+        try {
+            if (DnsCodec.qdCount(query) != 1) {
+                throw new IOException("Expected exactly one question");
+            }
+            codec.reset(query);
+
+            int questionEnd = codec.answerOffset();
+            name = codec.names().decodeToString(DnsCodec.HEADER_LENGTH);
+            qType = query.getShort(questionEnd - 4);
+            question = new byte[questionEnd - DnsCodec.HEADER_LENGTH];
+            query.get(DnsCodec.HEADER_LENGTH, question);
+
+            if (query.getShort(questionEnd - 2) != DnsCodec.CLASS_IN) {
+                client.accept(errorReply(id, flags, question, RCODE_NOTIMP));
+                return;
+            }
+
+            while (codec.nextRecord()) {
+                if (codec.type() == DnsCodec.TYPE_OPT) {
+                    edns = true;
+                    clientPayloadSize = Math.max(clientPayloadSize, codec.recordClass() & 0xffff);
+                }
+            }
+        } catch (IOException e) {
+            client.accept(errorReply(id, flags, new byte[0], RCODE_FORMERR));
+            return;
+        }
+
+        final boolean clientEdns = edns;
+        final int limit = tcp ? MAX_TCP_LENGTH : clientPayloadSize;
+
+        resolver.resolve(name, qType).whenComplete((answer, error) -> {
+            byte[] reply = null;
+            if (answer != null) {
+                reply = relay(answer.getResponse(), id, clientEdns, limit);
+            }
+            if (reply == null) {
+                reply = errorReply(id, flags, question, RCODE_SERVFAIL);
+            }
+            client.accept(reply);
+        });
+    }
+
+    /**
+     * Rewrites a copy of the upstream response for the client, or returns null
+     * if the response was not kept or cannot be walked.
+     */
+    private static byte[] relay(DnsResponse response, short id, boolean clientEdns, int limit) {
+        if (response.getMessage() == null) {
+            return null;
+        }
+
+        byte[] message = response.getMessage().clone();
+        ByteBuffer buf = ByteBuffer.wrap(message);
+        DnsCodec codec = RELAY_CODEC.get();
+        long age = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - response.getReceivedAt());
+        int optOffset = -1;
+        int optLength = 0;
+
+        try {
+            codec.reset(buf);
+            while (codec.nextRecord()) {
+                if (codec.type() == DnsCodec.TYPE_OPT) {
+                    optOffset = codec.recordOffset();
+                    optLength = codec.recordLength();
+                } else if (age > 0) {
+                    int ttlIndex = codec.rdataOffset() - 6;
+                    long ttl = buf.getInt(ttlIndex) & 0xffffffffL;
+                    buf.putInt(ttlIndex, (int) Math.max(0, ttl - age));
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        buf.putShort(0, id);
+        int length = message.length;
+
+        // RFC 6891 7: no OPT in answers to queries without one; only the last record is
+        // stripped so that no compression pointer can end up past the removed bytes
+        if (!clientEdns && optOffset >= 0 && optOffset + optLength == length) {
+            length = optOffset;
+            buf.putShort(10, (short) (DnsCodec.arCount(buf) - 1));
+        }
+
+        // too big for the client, it has to ask again over TCP
+        if (length > limit) {
+            length = codec.answerOffset();
+            buf.putShort(2, (short) (DnsCodec.flags(buf) | DnsCodec.FLAG_TC));
+            buf.putShort(6, (short) 0);
+            buf.putShort(8, (short) 0);
+            buf.putShort(10, (short) 0);
+        }
+
+        return length == message.length ? message : Arrays.copyOf(message, length);
+    }
+
+    // Header plus the echoed question, with the given RCODE
+    private static byte[] errorReply(short id, int queryFlags, byte[] question, int rcode) {
+        byte[] reply = new byte[DnsCodec.HEADER_LENGTH + question.length];
+        ByteBuffer buf = ByteBuffer.wrap(reply);
+
+        buf.putShort(0, id);
+        buf.putShort(2, (short) (DnsCodec.FLAG_QR | (queryFlags & (DnsCodec.OPCODE_MASK | DnsCodec.FLAG_RD))
+                | DnsCodec.FLAG_RA | rcode));
+        buf.putShort(4, (short) (question.length > 0 ? 1 : 0));
+        System.arraycopy(question, 0, reply, DnsCodec.HEADER_LENGTH, question.length);
+        return reply;
+    }
+
+    private void send(byte[] reply, SocketAddress client) {
+        try {
+            serverSocket.send(new DatagramPacket(reply, reply.length, client));
+        } catch (IOException e) {
+            // the client will retry, nothing else to do with a lost answer
+        }
+    }
+}
@@ -0,0 +1,580 @@
+/**
+ * DNS Iterative Resolver
+ *
+ * Resolves names without asking anyone to recurse: queries go out with RD
+ * clear, starting at the root hints, and every referral is followed to the
+ * nameservers it names. A referral is a response without answers whose
+ * authority section holds NS records for a zone below the one just asked;
+ * the addresses of those nameservers come from A glue in the additional
+ * section, or, for glueless delegations, from resolving the nameserver names
+ * the same way. Glue is only trusted for nameserver names inside the zone of
+ * the server that sent it. CNAMEs that a response does not resolve itself are
+ * followed by starting over for their target.
+ *
+ * Delegations are cached by zone cut until the smallest TTL of their NS and
+ * glue records runs out, so a lookup starts at the closest enclosing zone
+ * already known instead of at the root. Each nameserver address keeps a
+ * DnsUpstream, so a zone's fastest healthy server is asked first and one that
+ * stopped answering is passed over by later lookups too. These are not
+ * published as metrics, and are forgotten along with the delegations that
+ * name them once MAX_UPSTREAMS are tracked.
+ *
+ * Every nameserver is queried on the port of the root hints, which lets a
+ * tree of local stand-in authorities on loopback addresses (UDPServer -a
+ * address -z zonefile) take the place of the real hierarchy. Queries, timeouts,
+ * referrals and delegation cache hits are kept in Metrics (component
+ * DnsIterativeResolver).
+ *
+ *     DnsIterativeResolver resolver = new DnsIterativeResolver(rootHints, 5000, 3, 1232);
+ *     DnsAnswer answer = resolver.resolve("www.example.com", DnsRecord.TYPE_A);
+ *
+ * Lookups block the calling thread, each on its own socket; any number of
+ * threads may share the delegation cache.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+public class DnsIterativeResolver {
+
+    // Response codes
+    private static final int RCODE_FORMERR = 1;
+    private static final int RCODE_SERVFAIL = 2;
+    private static final int RCODE_NOTIMP = 4;
+    private static final int RCODE_REFUSED = 5;
+
+    // header + longest possible name + QTYPE/QCLASS
+    private static final int MAX_QUERY_LENGTH = DnsCodec.HEADER_LENGTH + 255 + 4 + DnsCodec.OPT_LENGTH;
+
+    // Queries sent for one lookup, counting referrals, CNAMEs and nameserver lookups
+    private static final int MAX_STEPS = 32;
+
+    // Nesting of lookups for the addresses of glueless nameservers
+    private static final int MAX_DEPTH = 4;
+
+    private static final int MAX_CNAME_CHAIN = 8;
+
+    // Delegations are kept at most this long and the cache at most this large
+    private static final int MAX_TTL = 86400;
+    private static final int MAX_DELEGATIONS = 100000;
+
+    // Nameservers whose health is tracked; each costs a few KB of RTT samples
+    private static final int MAX_UPSTREAMS = 10000;
+
+    // Looked up once so that recording is only an add per query
+    private static final Metrics METRICS = Metrics.forComponent("DnsIterativeResolver");
+    private static final LongAdder QUERIES = METRICS.counter("queries");
+    private static final LongAdder TIMEOUTS = METRICS.counter("timeouts");
+    private static final LongAdder TCP_FALLBACKS = METRICS.counter("tcpFallbacks");
+    private static final LongAdder REFERRALS = METRICS.counter("referrals");
+    private static final LongAdder DELEGATION_HITS = METRICS.counter("delegationHits");
+    private static final LongAdder DELEGATION_MISSES = METRICS.counter("delegationMisses");
+
+    // Nameservers of a zone cut; the zone is lower case without the trailing dot ("" for the root)
+    private static class Delegation {
+        private final String zone;
+        private final List<String> nameservers;
+        private final List<InetSocketAddress> servers;
+        private final long expiresAt;
+
+        private Delegation(String zone, List<String> nameservers, List<InetSocketAddress> servers,
+                long expiresAt) {
+            this.zone = zone;
+            this.nameservers = nameservers;
+            this.servers = servers;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    // State of one call to resolve(), shared by the lookups it nests
+    private static class Lookup {
+        private final DatagramSocket socket;
+        private final DnsCodec codec = new DnsCodec();
+        private final byte[] request = new byte[MAX_QUERY_LENGTH];
+        private final byte[] response;
+        private final long deadline;
+        private final List<String> trace;
+        private int retries;
+        private int steps;
+
+        private Lookup(DatagramSocket socket, int responseSize, long deadline, List<String> trace) {
+            this.socket = socket;
+            this.response = new byte[responseSize];
+            this.deadline = deadline;
+            this.trace = trace;
+        }
+    }
+
+    private final Delegation root;
+    private final Map<String, Delegation> delegations = new ConcurrentHashMap<String, Delegation>();
+    private final Map<InetSocketAddress, DnsUpstream> upstreams = new ConcurrentHashMap<InetSocketAddress, DnsUpstream>();
+    private final int port;
+    private final long timeoutNanos;
+    private final int maxRetries;
+    private final int udpPayloadSize;
+    private long deadlineNanos = Long.MAX_VALUE;
+
+    public DnsIterativeResolver(List<InetSocketAddress> rootHints, int timeoutMillis, int maxRetries,
+            int udpPayloadSize) {
+        if (rootHints.isEmpty()) {
+            throw new IllegalArgumentException("At least one root hint is required");
+        }
+        List<String> names = new ArrayList<String>();
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        for (InetSocketAddress hint : rootHints) {
+            names.add(hint.getAddress().getHostAddress());
+            servers.add(hint);
+        }
+        this.root = new Delegation("", names, servers, Long.MAX_VALUE);
+        this.port = rootHints.get(0).getPort();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        this.maxRetries = maxRetries;
+        this.udpPayloadSize = udpPayloadSize;
+    }
+
+    // Total time a lookup may take, including every referral; 0 for no limit
+    public void setDeadline(int deadlineMillis) {
+        deadlineNanos = deadlineMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(deadlineMillis) : Long.MAX_VALUE;
+    }
+
+    // Number of zone cuts cached, expired ones included until they are next looked up
+    public int size() {
+        return delegations.size();
+    }
+
+    public DnsAnswer resolve(String name, short qType) throws IOException {
+        return resolve(name, qType, null);
+    }
+
+    /**
+     * Resolves a name iteratively. The answer's response is the one from the
+     * server that finally answered (or refused to), or null if no server
+     * could be reached in time or the referrals did not lead anywhere. If
+     * trace is not null, a line is added to it for every zone asked and
+     * CNAME followed.
+     */
+    public DnsAnswer resolve(String name, short qType, List<String> trace) throws IOException {
+        long startTime = System.nanoTime();
+        long deadline = deadlineNanos == Long.MAX_VALUE ? Long.MAX_VALUE : startTime + deadlineNanos;
+        int responseSize = Math.max(DnsCodec.CLASSIC_UDP_PAYLOAD_SIZE, udpPayloadSize);
+
+        DnsResponse response;
+        Lookup lookup;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            lookup = new Lookup(socket, responseSize, deadline, trace);
+            response = resolve(lookup, normalize(name), qType, 0);
+        }
+
+        double duration = (double) (System.nanoTime() - startTime) / 1e9;
+        return new DnsAnswer(name, qType, response, lookup.retries, duration, false);
+    }
+
+    private DnsResponse resolve(Lookup lookup, String name, short qType, int depth) throws IOException {
+        Delegation delegation = closestDelegation(lookup, name);
+        int cnames = 0;
+
+        while (true) {
+            if (++lookup.steps > MAX_STEPS) {
+                trace(lookup, "Gave up on " + name + " after " + MAX_STEPS + " queries");
+                return null;
+            }
+
+            ByteBuffer reply = query(lookup, delegation, name, qType);
+            if (reply == null) {
+                return null;
+            }
+
+            DnsCodec codec = lookup.codec;
+            codec.reset(reply);
+            int flags = DnsCodec.flags(reply);
+            if ((flags & DnsCodec.RCODE_MASK) != 0) {
+                return DnsClient.parseResponse(reply, codec);
+            }
+
+            Set<String> answered = new HashSet<String>();
+            Map<String, String> aliases = new HashMap<String, String>();
+            Map<String, List<String>> cuts = new HashMap<String, List<String>>();
+            Map<String, List<InetAddress>> glue = new HashMap<String, List<InetAddress>>();
+            int ttl = MAX_TTL;
+
+            while (codec.nextRecord()) {
+                short type = codec.type();
+                String owner = normalize(codec.names().decodeToString(codec.recordOffset()));
+
+                if (codec.section() == DnsCodec.SECTION_ANSWER) {
+                    if (type == qType) {
+                        answered.add(owner);
+                    } else if (type == DnsRecord.TYPE_CNAME) {
+                        aliases.put(owner, normalize(codec.names().decodeToString(codec.rdataOffset())));
+                    }
+                } else if (codec.section() == DnsCodec.SECTION_AUTHORITY && type == DnsRecord.TYPE_NS) {
+                    String nameserver = normalize(codec.names().decodeToString(codec.rdataOffset()));
+                    cuts.computeIfAbsent(owner, zone -> new ArrayList<String>()).add(nameserver);
+                    ttl = Math.min(ttl, Math.max(0, codec.ttl()));
+                } else if (codec.section() == DnsCodec.SECTION_ADDITIONAL && type == DnsRecord.TYPE_A
+                        && codec.rdataLength() == 4 && isWithin(owner, delegation.zone)) {
+                    byte[] address = new byte[4];
+                    codec.buffer().get(codec.rdataOffset(), address);
+                    glue.computeIfAbsent(owner, host -> new ArrayList<InetAddress>())
+                            .add(InetAddress.getByAddress(address));
+                    ttl = Math.min(ttl, Math.max(0, codec.ttl()));
+                }
+            }
+
+            // an answer for the name, or for the end of a CNAME chain the response follows itself
+            String target = name;
+            for (int hops = 0; !answered.contains(target) && aliases.containsKey(target)
+                    && hops < MAX_CNAME_CHAIN; hops++) {
+                target = aliases.get(target);
+            }
+            if (answered.contains(target) || (target.equals(name) && !answered.isEmpty())) {
+                return DnsClient.parseResponse(reply, codec);
+            }
+            if (!target.equals(name)) {
+                if (++cnames > MAX_CNAME_CHAIN) {
+                    trace(lookup, "Gave up on " + name + " after " + MAX_CNAME_CHAIN + " CNAMEs");
+                    return null;
+                }
+                trace(lookup, "CNAME " + name + ". -> " + target + ".");
+                name = target;
+                delegation = closestDelegation(lookup, name);
+                continue;
+            }
+
+            // a referral names a zone below the one asked that contains the name
+            String cut = null;
+            if ((flags & DnsCodec.FLAG_AA) == 0) {
+                for (String zone : cuts.keySet()) {
+                    if (isWithin(name, zone) && isWithin(zone, delegation.zone) && !zone.equals(delegation.zone)
+                            && (cut == null || zone.length() > cut.length())) {
+                        cut = zone;
+                    }
+                }
+            }
+            if (cut == null) {
+                // no data for this type, or a lame server pointing sideways or up
+                return DnsClient.parseResponse(reply, codec);
+            }
+
+            REFERRALS.increment();
+            delegation = delegate(lookup, cut, cuts.get(cut), glue, ttl, depth);
+            if (delegation == null) {
+                trace(lookup, "No address for any nameserver of " + cut + ".");
+                return null;
+            }
+            trace(lookup, "Zone " + cut + ". at " + describe(delegation) + " (referral)");
+        }
+    }
+
+    /**
+     * Builds and caches the delegation a referral describes. Nameservers
+     * without glue are looked up themselves, until one of them has an
+     * address. Returns null if none does.
+     */
+    private Delegation delegate(Lookup lookup, String zone, List<String> nameservers,
+            Map<String, List<InetAddress>> glue, int ttl, int depth) throws IOException {
+        List<InetSocketAddress> servers = new ArrayList<InetSocketAddress>();
+        for (String nameserver : nameservers) {
+            List<InetAddress> addresses = glue.get(nameserver);
+            if (addresses != null) {
+                for (InetAddress address : addresses) {
+                    servers.add(new InetSocketAddress(address, port));
+                }
+            }
+        }
+
+        if (servers.isEmpty() && depth < MAX_DEPTH) {
+            for (String nameserver : nameservers) {
+                trace(lookup, "Looking up glueless nameserver " + nameserver + ".");
+                DnsResponse response = resolve(lookup, nameserver, DnsRecord.TYPE_A, depth + 1);
+                if (response == null) {
+                    continue;
+                }
+                for (DnsRecord record : response.getAnswers()) {
+                    if (record.getType() == DnsRecord.TYPE_A) {
+                        servers.add(new InetSocketAddress(InetAddress.getByName(record.getData()), port));
+                    }
+                }
+                if (!servers.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        if (servers.isEmpty()) {
+            return null;
+        }
+
+        Delegation delegation = new Delegation(zone, nameservers, servers,
+                System.nanoTime() + TimeUnit.SECONDS.toNanos(ttl));
+        if (ttl > 0) {
+            cache(delegation);
+        }
+        return delegation;
+    }
+
+    // Health of a nameserver, shared by every delegation naming it and not published as metrics
+    private DnsUpstream upstream(InetSocketAddress address) {
+        DnsUpstream upstream = upstreams.get(address);
+        if (upstream == null) {
+            if (upstreams.size() >= MAX_UPSTREAMS) {
+                pruneUpstreams();
+            }
+            upstream = upstreams.computeIfAbsent(address, key -> new DnsUpstream(key, false));
+        }
+        return upstream;
+    }
+
+    /**
+     * Forgets the servers that neither the root hints nor any cached
+     * delegation name, or every server if that frees less than a quarter of
+     * the map. A forgotten server starts over as if it had never been asked.
+     */
+    private void pruneUpstreams() {
+        Set<InetSocketAddress> named = new HashSet<InetSocketAddress>(root.servers);
+        for (Delegation delegation : delegations.values()) {
+            named.addAll(delegation.servers);
+        }
+        upstreams.keySet().retainAll(named);
+        if (upstreams.size() >= MAX_UPSTREAMS * 3 / 4) {
+            upstreams.clear();
+        }
+    }
+
+    private void cache(Delegation delegation) {
+        if (delegations.size() >= MAX_DELEGATIONS) {
+            long now = System.nanoTime();
+            delegations.values().removeIf(cached -> cached.expiresAt - now <= 0);
+            pruneUpstreams();
+            if (delegations.size() >= MAX_DELEGATIONS) {
+                return;
+            }
+        }
+        delegations.put(delegation.zone, delegation);
+    }
+
+    // The cached delegation of the longest zone containing the name, or the root hints
+    private Delegation closestDelegation(Lookup lookup, String name) {
+        long now = System.nanoTime();
+        for (String zone = name; !zone.isEmpty(); zone = parent(zone)) {
+            Delegation delegation = delegations.get(zone);
+            if (delegation == null) {
+                continue;
+            }
+            if (delegation.expiresAt - now <= 0) {
+                delegations.remove(zone, delegation);
+                continue;
+            }
+            DELEGATION_HITS.increment();
+            trace(lookup, "Zone " + zone + ". at " + describe(delegation) + " (cached)");
+            return delegation;
+        }
+
+        DELEGATION_MISSES.increment();
+        trace(lookup, "Zone . at " + describe(root) + " (root hints)");
+        return root;
+    }
+
+    /**
+     * Sends the query to the best of the delegation's servers, moving to the
+     * next best on every timeout or server failure, until one answers or the
+     * retries run out. A truncated answer is fetched again over TCP. Returns
+     * the response, backed by the lookup's buffer, or the last server failure
+     * if every attempt got one, or null.
+     */
+    private ByteBuffer query(Lookup lookup, Delegation delegation, String name, short qType) throws IOException {
+        boolean edns = udpPayloadSize != 0;
+        ByteBuffer failure = null;
+        List<DnsUpstream> servers = new ArrayList<DnsUpstream>(delegation.servers.size());
+        for (InetSocketAddress server : delegation.servers) {
+            servers.add(upstream(server));
+        }
+        DnsUpstream upstream = null;
+
+        for (int attempt = 0; attempt < maxRetries; attempt++) {
+            long remaining = lookup.deadline - System.nanoTime();
+            if (remaining <= 0) {
+                trace(lookup, "Deadline exceeded asking for " + name + ".");
+                break;
+            }
+            upstream = selectUpstream(servers, upstream);
+            InetSocketAddress server = upstream.getAddress();
+            long attemptTimeout = Math.min(remaining, DnsUpstream.backoff(upstream.rto(), attempt, timeoutNanos));
+
+            short queryId = (short) ThreadLocalRandom.current().nextInt(1 << 16);
+            int length = DnsCodec.encodeQuery(ByteBuffer.wrap(lookup.request), queryId, 0, name, qType,
+                    edns ? udpPayloadSize : 0);
+            try {
+                lookup.socket.send(new DatagramPacket(lookup.request, length, server));
+            } catch (IOException e) {
+                // an unroutable or forbidden address from a lame or hostile referral
+                trace(lookup, "Could not send to " + server.getAddress().getHostAddress() + ": " + e.getMessage());
+                upstream.recordTimeout();
+                continue;
+            }
+            long sentAt = System.nanoTime();
+            upstream.recordQuery();
+            QUERIES.increment();
+            if (attempt > 0) {
+                lookup.retries++;
+            }
+
+            int received = receive(lookup, server, queryId, attemptTimeout);
+            if (received < 0) {
+                upstream.recordTimeout();
+                TIMEOUTS.increment();
+                continue;
+            }
+            // every attempt has its own query ID, so the RTT is unambiguous
+            upstream.recordRtt(System.nanoTime() - sentAt);
+            ByteBuffer reply = ByteBuffer.wrap(lookup.response, 0, received);
+
+            if ((DnsCodec.flags(reply) & DnsCodec.FLAG_TC) != 0) {
+                TCP_FALLBACKS.increment();
+                try {
+                    byte[] full = DnsTcpPool.exchange(server.getAddress(), server.getPort(),
+                            Arrays.copyOf(lookup.request, length), (int) TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+                    reply = ByteBuffer.wrap(full);
+                } catch (IOException e) {
+                    continue;
+                }
+                if (reply.limit() < DnsCodec.HEADER_LENGTH || (short) DnsCodec.queryId(reply) != queryId
+                        || (DnsCodec.flags(reply) & DnsCodec.FLAG_QR) == 0) {
+                    continue;
+                }
+            }
+
+            int rcode = DnsCodec.flags(reply) & DnsCodec.RCODE_MASK;
+            if (rcode == RCODE_FORMERR && edns) {
+                // an old server that does not understand OPT
+                edns = false;
+                continue;
+            }
+            if (rcode == RCODE_FORMERR || rcode == RCODE_SERVFAIL || rcode == RCODE_NOTIMP
+                    || rcode == RCODE_REFUSED) {
+                failure = ByteBuffer.wrap(Arrays.copyOf(reply.array(), reply.limit()));
+                continue;
+            }
+            return reply;
+        }
+        return failure;
+    }
+
+    /**
+     * Picks the server with the best score, skipping unhealthy ones unless
+     * all of them are, and avoiding the excluded one if there is any choice.
+     */
+    private static DnsUpstream selectUpstream(List<DnsUpstream> servers, DnsUpstream exclude) {
+        DnsUpstream best = null;
+        boolean bestHealthy = false;
+        double bestScore = 0;
+
+        for (DnsUpstream upstream : servers) {
+            if (upstream == exclude) {
+                continue;
+            }
+            boolean healthy = upstream.isHealthy();
+            double score = upstream.score();
+            if (best == null || (healthy && !bestHealthy) || (healthy == bestHealthy && score < bestScore)) {
+                best = upstream;
+                bestHealthy = healthy;
+                bestScore = score;
+            }
+        }
+        return best != null ? best : exclude;
+    }
+
+    /**
+     * Waits for the response to the given query from the given server,
+     * ignoring anything else that arrives. Returns its length, or -1 on
+     * timeout.
+     */
+    private static int receive(Lookup lookup, InetSocketAddress server, short queryId, long timeout)
+            throws IOException {
+        long until = System.nanoTime() + timeout;
+        DatagramPacket packet = new DatagramPacket(lookup.response, lookup.response.length);
+        ByteBuffer buf = ByteBuffer.wrap(lookup.response);
+
+        while (true) {
+            long remaining = until - System.nanoTime();
+            if (remaining <= 0) {
+                return -1;
+            }
+            lookup.socket.setSoTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)));
+            packet.setData(lookup.response, 0, lookup.response.length);
+            try {
+                lookup.socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                return -1;
+            }
+
+            if (packet.getLength() >= DnsCodec.HEADER_LENGTH && server.equals(packet.getSocketAddress())
+                    && (short) DnsCodec.queryId(buf) == queryId && (DnsCodec.flags(buf) & DnsCodec.FLAG_QR) != 0) {
+                return packet.getLength();
+            }
+        }
+    }
+
+    private static void trace(Lookup lookup, String line) {
+        if (lookup.trace != null) {
+            lookup.trace.add(line);
+        }
+    }
+
+    private static String describe(Delegation delegation) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < delegation.servers.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            out.append(delegation.servers.get(i).getAddress().getHostAddress());
+        }
+        if (!delegation.zone.isEmpty()) {
+            out.append(" via ").append(String.join(", ", delegation.nameservers));
+        }
+        return out.toString();
+    }
+
+    // Lower case without the trailing dot
+    private static String normalize(String name) {
+        if (name.endsWith(".")) {
+            name = name.substring(0, name.length() - 1);
+        }
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    private static String parent(String zone) {
+        int dot = zone.indexOf('.');
+        return dot < 0 ? "" : zone.substring(dot + 1);
+    }
+
+    // True if name is zone or below it
+    private static boolean isWithin(String name, String zone) {
+        if (zone.isEmpty() || name.equals(zone)) {
+            return true;
+        }
+        return name.length() > zone.length() && name.endsWith(zone)
+                && name.charAt(name.length() - zone.length() - 1) == '.';
+    }
+
+    @Override
+    public String toString() {
+        return "Delegation cache: " + delegations.size() + " zones, " + DELEGATION_HITS.sum() + " hits, "
+                + DELEGATION_MISSES.sum() + " misses (from the root), " + REFERRALS.sum() + " referrals followed, "
+                + QUERIES.sum() + " queries, " + TIMEOUTS.sum() + " timeouts";
+    }
+}
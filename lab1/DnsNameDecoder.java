@@ -0,0 +1,212 @@
+/**
+ * DNS Name Decoder
+ *
+ * Decodes (possibly compressed) domain names out of a packet into a reusable
+ * char arena. Every read is bounds checked, compression pointers must point
+ * backwards and are capped at MAX_POINTER_HOPS per name, so a corrupt or
+ * crafted packet fails with an IOException instead of looping.
+ *
+ * Each suffix decoded within a packet is remembered by the offset of its first
+ * label. When a later name points at a known suffix (as the names of MX and NS
+ * records usually do) the text is copied from the arena instead of walking the
+ * labels again.
+ *
+ * Instances are not thread safe; keep one per thread and reuse it.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public final class DnsNameDecoder {
+
+    public static final int MAX_POINTER_HOPS = 32;
+    public static final int MAX_NAME_LENGTH = 255;
+
+    // Suffixes are only remembered for labels starting in the first MEMO_SIZE bytes
+    private static final int MEMO_SIZE = 4096;
+
+    // Packet being decoded
+    private ByteBuffer packet;
+    private int limit;
+
+    // Decoded names, appended one after the other for the current packet
+    private char[] arena = new char[1024];
+    private int arenaLength;
+
+    // Suffix memo indexed by label offset, valid when memoGeneration matches
+    private final int[] memoGeneration = new int[MEMO_SIZE];
+    private final int[] memoStart = new int[MEMO_SIZE];
+    private final int[] memoLength = new int[MEMO_SIZE];
+    private int generation;
+
+    // Labels visited by the current decode: offset and output position
+    private final int[] visitedOffset = new int[MAX_NAME_LENGTH / 2 + 1];
+    private final int[] visitedPosition = new int[MAX_NAME_LENGTH / 2 + 1];
+
+    // Result of the last decode
+    private int start;
+    private int length;
+    private int end;
+
+    /**
+     * Starts decoding names from a new packet held between index 0 and the
+     * buffer's limit. Forgets everything remembered about the previous packet.
+     */
+    public void reset(ByteBuffer buf) {
+        packet = buf;
+        limit = buf.limit();
+        arenaLength = 0;
+
+        if (++generation == 0) {
+            Arrays.fill(memoGeneration, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Decodes the name starting at offset into the arena. The text is then
+     * available through chars(), start() and length(), and end() gives the
+     * index just after the name in the packet.
+     */
+    public void decode(int offset) throws IOException {
+        start = arenaLength;
+        int position = start; // next free char in the arena
+        int visited = 0;
+        int hops = 0;
+        int wireLength = 1;
+        int labelOffset = offset;
+        end = -1;
+
+        while (true) {
+            checkBounds(labelOffset, 1);
+
+            // Reuse a suffix already decoded from this packet
+            if (labelOffset < MEMO_SIZE && memoGeneration[labelOffset] == generation) {
+                int suffixLength = memoLength[labelOffset];
+                if (position > start) {
+                    ensureArena(position + 1 + suffixLength);
+                    arena[position++] = '.';
+                } else {
+                    ensureArena(position + suffixLength);
+                }
+                System.arraycopy(arena, memoStart[labelOffset], arena, position, suffixLength);
+                position += suffixLength;
+                if (position - start > MAX_NAME_LENGTH) {
+                    throw new IOException("Name longer than " + MAX_NAME_LENGTH + " bytes at " + offset);
+                }
+                if (end < 0) {
+                    end = DnsCodec.skipName(packet, labelOffset, limit);
+                }
+                break;
+            }
+
+            int labelLen = packet.get(labelOffset) & 0xff;
+
+            // end of name
+            if (labelLen == 0) {
+                if (end < 0) {
+                    end = labelOffset + 1;
+                }
+                break;
+            }
+
+            // compression pointer
+            if ((labelLen & 0xc0) == 0xc0) {
+                checkBounds(labelOffset, 2);
+                if (++hops > MAX_POINTER_HOPS) {
+                    throw new IOException("Too many compression pointers in name at " + offset);
+                }
+                int target = ((labelLen & 0x3f) << 8) | (packet.get(labelOffset + 1) & 0xff);
+                if (target >= labelOffset) {
+                    throw new IOException("Compression pointer does not point backwards at " + labelOffset);
+                }
+                if (end < 0) {
+                    end = labelOffset + 2;
+                }
+                labelOffset = target;
+                continue;
+            }
+
+            if ((labelLen & 0xc0) != 0) {
+                throw new IOException("Unsupported label type at " + labelOffset);
+            }
+
+            checkBounds(labelOffset + 1, labelLen);
+            wireLength += labelLen + 1;
+            if (wireLength > MAX_NAME_LENGTH) {
+                throw new IOException("Name longer than " + MAX_NAME_LENGTH + " bytes at " + offset);
+            }
+
+            // separator, then the label characters
+            ensureArena(position + 1 + labelLen);
+            if (position > start) {
+                arena[position++] = '.';
+            }
+            visitedOffset[visited] = labelOffset;
+            visitedPosition[visited] = position;
+            visited++;
+
+            for (int i = 1; i <= labelLen; i++) {
+                arena[position++] = (char) (packet.get(labelOffset + i) & 0xff);
+            }
+            labelOffset += labelLen + 1;
+        }
+
+        arenaLength = position;
+        length = position - start;
+
+        // Remember every suffix this decode walked through
+        for (int i = 0; i < visited; i++) {
+            int labelStart = visitedOffset[i];
+            if (labelStart < MEMO_SIZE) {
+                memoGeneration[labelStart] = generation;
+                memoStart[labelStart] = visitedPosition[i];
+                memoLength[labelStart] = position - visitedPosition[i];
+            }
+        }
+    }
+
+    // Decodes the name at offset and returns it as a String
+    public String decodeToString(int offset) throws IOException {
+        decode(offset);
+        return new String(arena, start, length);
+    }
+
+    // Arena holding the last decoded name; valid until the next decode or reset
+    public char[] chars() {
+        return arena;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    // index in the packet just after the last decoded name
+    public int end() {
+        return end;
+    }
+
+    @Override
+    public String toString() {
+        return new String(arena, start, length);
+    }
+
+    private void checkBounds(int index, int count) throws IOException {
+        if (index < 0 || index + count > limit) {
+            throw new IOException("Name runs past the end of the packet");
+        }
+    }
+
+    private void ensureArena(int capacity) {
+        if (capacity > arena.length) {
+            arena = Arrays.copyOf(arena, Math.max(capacity, arena.length * 2));
+        }
+    }
+}
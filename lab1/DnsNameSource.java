@@ -0,0 +1,197 @@
+/**
+ * DNS Name Source
+ *
+ * Streams names, one per line, out of a file that is memory-mapped a window
+ * at a time, so a list of millions of names never has to be read onto the
+ * heap. Lines are trimmed and blank ones skipped; lines longer than any DNS
+ * name could be are skipped and counted.
+ *
+ * Every line is identified by the byte offset it starts at, which is what a
+ * checkpoint records, and a source can start at any such offset. The current
+ * line's fingerprint is a 64-bit hash of the name with ASCII case and a
+ * trailing dot ignored, used to recognise repeated names without keeping them.
+ *
+ *     DnsNameSource names = new DnsNameSource(path, 0);
+ *     while (names.next()) {
+ *         ... names.name(), names.fingerprint(), names.lineOffset() ...
+ *     }
+ *
+ * Instances are not thread safe.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class DnsNameSource implements Closeable {
+
+    // Bytes of the file mapped at once
+    private static final long WINDOW_SIZE = 64L << 20;
+
+    // Longest line kept; a name in text form is at most 253 characters
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart;
+
+    // Where the next line starts, and where the current one started
+    private long offset;
+    private long lineOffset = -1;
+
+    private final byte[] line = new byte[MAX_LINE_LENGTH];
+    private int lineLength;
+    private long skipped;
+
+    public DnsNameSource(Path path, long startOffset) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+        if (startOffset < 0 || startOffset > size) {
+            channel.close();
+            throw new IOException("Offset " + startOffset + " is outside " + path + " (" + size + " bytes)");
+        }
+        this.offset = startOffset;
+    }
+
+    /**
+     * Moves to the next non-blank line. Returns false at the end of the
+     * file.
+     */
+    public boolean next() throws IOException {
+        while (offset < size) {
+            if (window == null || offset < windowStart || offset >= windowStart + window.limit()) {
+                map(offset);
+            }
+
+            int start = (int) (offset - windowStart);
+            int limit = window.limit();
+            int end = start;
+            while (end < limit && window.get(end) != '\n') {
+                end++;
+            }
+
+            // the line runs past the window: map again from its start, unless it fills a whole window
+            if (end == limit && windowStart + limit < size) {
+                if (start == 0) {
+                    skipped++;
+                    offset = skipLine(windowStart + limit);
+                    continue;
+                }
+                map(offset);
+                continue;
+            }
+
+            long thisLine = offset;
+            offset = Math.min(size, windowStart + end + 1);
+
+            while (start < end && window.get(start) <= ' ') {
+                start++;
+            }
+            while (end > start && window.get(end - 1) <= ' ') {
+                end--;
+            }
+            if (start == end) {
+                continue;
+            }
+            if (end - start > MAX_LINE_LENGTH) {
+                skipped++;
+                continue;
+            }
+
+            lineLength = end - start;
+            window.get(start, line, 0, lineLength);
+            lineOffset = thisLine;
+            return true;
+        }
+
+        offset = size;
+        return false;
+    }
+
+    // The current name, with the bytes of the file as its characters
+    public String name() {
+        return new String(line, 0, lineLength, StandardCharsets.ISO_8859_1);
+    }
+
+    public long fingerprint() {
+        return fingerprint(line, 0, lineLength);
+    }
+
+    // Offset of the current line's first byte
+    public long lineOffset() {
+        return lineOffset;
+    }
+
+    // Offset the line after the current one starts at, which a new source can resume from
+    public long nextOffset() {
+        return offset;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    // Lines skipped for being too long to be a name
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * The fingerprint of the name in bytes[from, to), ignoring ASCII case and
+     * one trailing dot: 64-bit FNV-1a, then the MurmurHash3 finalizer to
+     * spread the bits. Two different names share a fingerprint with a
+     * probability of about 2^-64.
+     */
+    public static long fingerprint(byte[] bytes, int from, int to) {
+        if (to > from && bytes[to - 1] == '.') {
+            to--;
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            int b = bytes[i] & 0xff;
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            hash = (hash ^ b) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // Offset after the next newline at or past the given one, mapping window by window; the file size if none
+    private long skipLine(long at) throws IOException {
+        while (at < size) {
+            map(at);
+            int limit = window.limit();
+            for (int i = 0; i < limit; i++) {
+                if (window.get(i) == '\n') {
+                    return windowStart + i + 1;
+                }
+            }
+            at = windowStart + limit;
+        }
+        return size;
+    }
+
+    private void map(long at) throws IOException {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, at, Math.min(WINDOW_SIZE, size - at));
+        windowStart = at;
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * DNS Record
+ *
+ * A single resource record decoded from the answer or additional section of a
+ * DNS response.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+public class DnsRecord {
+
+    // Record types understood by the client
+    public static final short TYPE_A = 0x0001;
+    public static final short TYPE_NS = 0x0002;
+    public static final short TYPE_CNAME = 0x0005;
+    public static final short TYPE_MX = 0x000f;
+    public static final short TYPE_OPT = DnsCodec.TYPE_OPT;
+
+    private final short type;
+    private final short recordClass;
+    private final int ttl;
+    private final short preference;
+    private final String data;
+    private final int length;
+
+    public DnsRecord(short type, short recordClass, int ttl, short preference, String data, int length) {
+        this.type = type;
+        this.recordClass = recordClass;
+        this.ttl = ttl;
+        this.preference = preference;
+        this.data = data;
+        this.length = length;
+    }
+
+    public short getType() {
+        return type;
+    }
+
+    public short getRecordClass() {
+        return recordClass;
+    }
+
+    public int getTtl() {
+        return ttl;
+    }
+
+    public short getPreference() {
+        return preference;
+    }
+
+    // IP address for A records, domain name for NS/MX/CNAME, null otherwise
+    public String getData() {
+        return data;
+    }
+
+    // number of bytes the record occupies in the packet
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Formats the record as a line of client output, or returns null if the
+     * record type is not one the client understands.
+     */
+    public String format(boolean authoritative) {
+        String auth = authoritative ? "auth" : "nonauth";
+
+        switch (type) {
+        case TYPE_A:
+            return "IP\t" + data + "\t " + ttl + "\t" + auth;
+
+        case TYPE_NS:
+            return "NS\t" + data + "\t" + ttl + "\t" + auth;
+
+        case TYPE_MX:
+            return "MX\t" + data + "\t" + preference + "\t" + ttl + "\t" + auth;
+
+        case TYPE_CNAME:
+            return "CNAME\t" + data + "\t" + ttl + "\t" + auth;
+
+        // CLASS holds the sender's UDP payload size, TTL the EDNS version in its second byte
+        case TYPE_OPT:
+            return "OPT\t" + (recordClass & 0xffff) + "\tversion " + ((ttl >> 16) & 0xff);
+
+        default:
+            return null;
+        }
+    }
+}
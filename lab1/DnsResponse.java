@@ -0,0 +1,82 @@
+/**
+ * DNS Response
+ *
+ * Header fields and decoded records of a DNS response packet, along with the
+ * packet itself so that it can be relayed as-is.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.util.List;
+
+public class DnsResponse {
+
+    private final short id;
+    private final boolean authoritative;
+    private final boolean recursionAvailable;
+    private final int rcode;
+    private final List<DnsRecord> answers;
+    private final List<DnsRecord> additional;
+    private final int udpPayloadSize;
+    private final byte[] message;
+    private final long receivedAt;
+
+    public DnsResponse(short id, boolean authoritative, boolean recursionAvailable, int rcode,
+            List<DnsRecord> answers, List<DnsRecord> additional, int udpPayloadSize) {
+        this(id, authoritative, recursionAvailable, rcode, answers, additional, udpPayloadSize, null,
+                System.nanoTime());
+    }
+
+    public DnsResponse(short id, boolean authoritative, boolean recursionAvailable, int rcode,
+            List<DnsRecord> answers, List<DnsRecord> additional, int udpPayloadSize, byte[] message,
+            long receivedAt) {
+        this.id = id;
+        this.authoritative = authoritative;
+        this.recursionAvailable = recursionAvailable;
+        this.rcode = rcode;
+        this.answers = answers;
+        this.additional = additional;
+        this.udpPayloadSize = udpPayloadSize;
+        this.message = message;
+        this.receivedAt = receivedAt;
+    }
+
+    public short getId() {
+        return id;
+    }
+
+    public boolean isAuthoritative() {
+        return authoritative;
+    }
+
+    public boolean isRecursionAvailable() {
+        return recursionAvailable;
+    }
+
+    public int getRCode() {
+        return rcode;
+    }
+
+    public List<DnsRecord> getAnswers() {
+        return answers;
+    }
+
+    public List<DnsRecord> getAdditional() {
+        return additional;
+    }
+
+    // payload size advertised in the server's OPT record, 0 if it sent none
+    public int getUdpPayloadSize() {
+        return udpPayloadSize;
+    }
+
+    // the response packet as received, or null if it was not kept
+    public byte[] getMessage() {
+        return message;
+    }
+
+    // System.nanoTime() when the response was decoded, for aging its TTLs
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+}
@@ -0,0 +1,111 @@
+/**
+ * DNS Retry Stats
+ *
+ * Counts how lookups of a resolver ended up: how many retransmissions and
+ * per-attempt timeouts they took, how many ran out of retries or hit their
+ * deadline, and how many were answered after 0, 1, 2, ... retries. Responses
+ * that could not be decoded are counted too.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+public class DnsRetryStats {
+
+    // Answers after this many retries or more share the last bucket
+    private static final int RETRY_BUCKETS = 8;
+
+    private long lookups;
+    private long transmissions;
+    private long retransmissions;
+    private long timeouts;
+    private long hedges;
+    private long retriesExhausted;
+    private long deadlinesExceeded;
+    private long malformed;
+    private final long[] answeredAfter = new long[RETRY_BUCKETS];
+
+    public synchronized void recordLookup() {
+        lookups++;
+    }
+
+    public synchronized void recordTransmission(boolean retransmission) {
+        transmissions++;
+        if (retransmission) {
+            retransmissions++;
+        }
+    }
+
+    public synchronized void recordTimeout() {
+        timeouts++;
+    }
+
+    public synchronized void recordHedge() {
+        hedges++;
+    }
+
+    public synchronized void recordAnswered(int retries) {
+        answeredAfter[Math.min(retries, RETRY_BUCKETS - 1)]++;
+    }
+
+    public synchronized void recordRetriesExhausted() {
+        retriesExhausted++;
+    }
+
+    public synchronized void recordDeadlineExceeded() {
+        deadlinesExceeded++;
+    }
+
+    public synchronized void recordMalformed() {
+        malformed++;
+    }
+
+    public synchronized long getLookups() {
+        return lookups;
+    }
+
+    public synchronized long getTransmissions() {
+        return transmissions;
+    }
+
+    public synchronized long getRetransmissions() {
+        return retransmissions;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized long getHedges() {
+        return hedges;
+    }
+
+    public synchronized long getRetriesExhausted() {
+        return retriesExhausted;
+    }
+
+    public synchronized long getDeadlinesExceeded() {
+        return deadlinesExceeded;
+    }
+
+    public synchronized long getMalformed() {
+        return malformed;
+    }
+
+    // number of lookups answered after the given number of retries
+    public synchronized long getAnsweredAfter(int retries) {
+        return retries < RETRY_BUCKETS - 1 ? answeredAfter[retries] : answeredAfter[RETRY_BUCKETS - 1];
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder out = new StringBuilder();
+        out.append("Retries: ").append(lookups).append(" lookups, ").append(transmissions).append(" transmissions, ")
+                .append(retransmissions).append(" retransmissions, ").append(timeouts).append(" timeouts, ")
+                .append(hedges).append(" hedges, ").append(retriesExhausted).append(" out of retries, ")
+                .append(deadlinesExceeded).append(" past deadline, ").append(malformed).append(" malformed\nAnswered after retries:");
+        for (int i = 0; i < RETRY_BUCKETS; i++) {
+            out.append(' ').append(i).append(i == RETRY_BUCKETS - 1 ? "+=" : "=").append(answeredAfter[i]);
+        }
+        return out.toString();
+    }
+}
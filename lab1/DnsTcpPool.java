@@ -0,0 +1,341 @@
+/**
+ * DNS TCP Pool
+ *
+ * DNS-over-TCP transport used when a UDP response comes back truncated (TC
+ * bit set). Messages use the 2-byte length framing of RFC 1035 4.2.2. Each
+ * upstream gets a small pool of persistent connections and every connection
+ * pipelines many queries at once, matching responses back by query ID, so
+ * large responses do not pay a TCP handshake per lookup.
+ *
+ * A new connection is opened once every open one has maxPipelined queries
+ * outstanding, up to maxConnections per upstream; past that, queries go to
+ * the least loaded connection, so maxPipelined is where the pool grows
+ * rather than a hard cap. Connections are opened outside the pool lock, so
+ * an unreachable upstream only delays queries for that upstream.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DnsTcpPool implements Closeable {
+
+    // Largest message the 2-byte length prefix can describe
+    private static final int MAX_MESSAGE_LENGTH = 0xffff;
+
+    // Opens connections and runs attempts so the caller's thread never blocks
+    private final ExecutorService connector = Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "dns-tcp-connect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // A connection that went away under its queries, which are worth one more try on a new one
+    private static class ConnectionLostException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private ConnectionLostException(InetSocketAddress upstream, IOException cause) {
+            super("Connection to " + upstream + " lost", cause);
+        }
+    }
+
+    /**
+     * One persistent connection. Writers frame queries under the connection
+     * lock; a reader thread decodes responses and completes their futures.
+     */
+    private class Connection {
+        private final InetSocketAddress upstream;
+        private final Socket socket;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        // Pending queries by ID, guarded by this
+        private final Map<Short, CompletableFuture<DnsResponse>> pending = new HashMap<Short, CompletableFuture<DnsResponse>>();
+        private int nextId;
+        private boolean closed;
+
+        private Connection(InetSocketAddress upstream) throws IOException {
+            this.upstream = upstream;
+            this.socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(upstream, timeoutMillis);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+
+            Thread reader = new Thread(this::readLoop, "dns-tcp-" + upstream);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private synchronized int load() {
+            return closed ? Integer.MAX_VALUE : pending.size();
+        }
+
+        private synchronized boolean isClosed() {
+            return closed;
+        }
+
+        private CompletableFuture<DnsResponse> send(String name, short qType) {
+            CompletableFuture<DnsResponse> future = new CompletableFuture<DnsResponse>();
+            short queryId;
+            IOException writeError = null;
+
+            synchronized (this) {
+                if (closed) {
+                    future.completeExceptionally(new ConnectionLostException(upstream, null));
+                    return future;
+                }
+
+                while (pending.containsKey((short) nextId)) {
+                    nextId = (nextId + 1) & 0xffff;
+                }
+                queryId = (short) nextId;
+                nextId = (nextId + 1) & 0xffff;
+                pending.put(queryId, future);
+
+                byte[] request = DnsClient.constructRequest(queryId, name, qType);
+                try {
+                    out.writeShort(request.length);
+                    out.write(request);
+                    out.flush();
+                } catch (IOException e) {
+                    writeError = e;
+                }
+            }
+
+            // futures are never completed while holding the connection lock
+            if (writeError != null) {
+                fail(new ConnectionLostException(upstream, writeError));
+                return future;
+            }
+
+            final short id = queryId;
+            future.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+                synchronized (this) {
+                    pending.remove(id);
+                }
+            });
+            return future;
+        }
+
+        private void readLoop() {
+            byte[] message = new byte[MAX_MESSAGE_LENGTH];
+            ByteBuffer buffer = ByteBuffer.wrap(message);
+            DnsCodec codec = new DnsCodec();
+
+            try {
+                while (true) {
+                    int length = in.readUnsignedShort();
+                    in.readFully(message, 0, length);
+
+                    if (length < DnsCodec.HEADER_LENGTH) {
+                        continue;
+                    }
+                    buffer.clear().limit(length);
+
+                    CompletableFuture<DnsResponse> future;
+                    synchronized (this) {
+                        future = pending.remove((short) DnsCodec.queryId(buffer));
+                    }
+                    if (future == null) {
+                        continue; // timed out already
+                    }
+
+                    // the message was read in full, so the framing survives one that cannot be decoded
+                    try {
+                        future.complete(DnsClient.parseResponse(buffer, codec));
+                    } catch (IOException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            } catch (IOException e) {
+                fail(new ConnectionLostException(upstream, e));
+            } catch (RuntimeException e) {
+                // the reader is going away, so nothing may stay routed to this connection
+                fail(new IOException("Reader for " + upstream + " failed", e));
+            }
+        }
+
+        // Closes the connection and fails everything pipelined on it
+        private void fail(IOException cause) {
+            List<CompletableFuture<DnsResponse>> failed;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                failed = new ArrayList<CompletableFuture<DnsResponse>>(pending.values());
+                pending.clear();
+            }
+
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already broken
+            }
+
+            for (CompletableFuture<DnsResponse> future : failed) {
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxPipelined;
+    private final int timeoutMillis;
+
+    // Open connections per upstream, and connections being opened, guarded by pools
+    private final Map<InetSocketAddress, List<Connection>> pools = new HashMap<InetSocketAddress, List<Connection>>();
+    private final Map<InetSocketAddress, Integer> opening = new HashMap<InetSocketAddress, Integer>();
+    private boolean closed;
+
+    public DnsTcpPool(int maxConnections, int maxPipelined, int timeoutMillis) {
+        this.maxConnections = maxConnections;
+        this.maxPipelined = maxPipelined;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sends the query over a pooled connection to the upstream. If the
+     * connection turns out to have been closed by the server (as idle DNS
+     * connections routinely are), the query is retried once on a new one.
+     * Timeouts, failed connects and responses that cannot be decoded are not
+     * retried.
+     */
+    public CompletableFuture<DnsResponse> query(InetSocketAddress upstream, String name, short qType) {
+        return attempt(upstream, name, qType).handle((response, error) -> {
+            if (error == null) {
+                return CompletableFuture.completedFuture(response);
+            }
+            if (!(unwrap(error) instanceof ConnectionLostException)) {
+                return CompletableFuture.<DnsResponse>failedFuture(error);
+            }
+            return attempt(upstream, name, qType);
+        }).thenCompose(future -> future);
+    }
+
+    @Override
+    public void close() {
+        synchronized (pools) {
+            closed = true;
+            for (List<Connection> connections : pools.values()) {
+                for (Connection connection : connections) {
+                    connection.fail(new IOException("Pool closed"));
+                }
+            }
+            pools.clear();
+        }
+        connector.shutdown();
+    }
+
+    /**
+     * Sends a single query over a fresh connection and waits for the answer.
+     * Used by the one-shot command line client.
+     */
+    public static byte[] exchange(InetAddress server, int port, byte[] request, int timeoutMillis)
+            throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(server, port), timeoutMillis);
+            socket.setSoTimeout(timeoutMillis);
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeShort(request.length);
+            out.write(request);
+            out.flush();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            byte[] response = new byte[in.readUnsignedShort()];
+            in.readFully(response);
+            return response;
+        } finally {
+            socket.close();
+        }
+    }
+
+    private CompletableFuture<DnsResponse> attempt(InetSocketAddress upstream, String name, short qType) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return acquire(upstream);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, connector).thenCompose(connection -> connection.send(name, qType));
+    }
+
+    /**
+     * Picks the least loaded open connection, opening a new one when all are
+     * busy and the upstream has room for another. The connect happens
+     * outside the pool lock; callers that find no connection while the
+     * upstream's last slots are still connecting wait for them.
+     */
+    private Connection acquire(InetSocketAddress upstream) throws IOException {
+        synchronized (pools) {
+            while (true) {
+                List<Connection> connections = pools.get(upstream);
+                if (connections == null) {
+                    connections = new ArrayList<Connection>();
+                    pools.put(upstream, connections);
+                }
+                connections.removeIf(Connection::isClosed);
+
+                Connection best = null;
+                for (Connection connection : connections) {
+                    if (best == null || connection.load() < best.load()) {
+                        best = connection;
+                    }
+                }
+
+                int connecting = opening.getOrDefault(upstream, 0);
+                boolean full = connections.size() + connecting >= maxConnections;
+                if (best != null && (best.load() < maxPipelined || full)) {
+                    return best;
+                }
+                if (!full) {
+                    opening.put(upstream, connecting + 1);
+                    break;
+                }
+                try {
+                    pools.wait(timeoutMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for a connection to " + upstream);
+                }
+            }
+        }
+
+        Connection connection = null;
+        try {
+            connection = new Connection(upstream);
+            return connection;
+        } finally {
+            synchronized (pools) {
+                opening.merge(upstream, -1, Integer::sum);
+                if (connection != null && closed) {
+                    connection.fail(new IOException("Pool closed"));
+                } else if (connection != null) {
+                    pools.computeIfAbsent(upstream, key -> new ArrayList<Connection>()).add(connection);
+                }
+                pools.notifyAll();
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
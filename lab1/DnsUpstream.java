@@ -0,0 +1,224 @@
+/**
+ * DNS Upstream
+ *
+ * Per-server health used to pick where queries go, in the style of the BIND
+ * and Unbound server selection. Keeps a smoothed RTT (SRTT, weight 1/8 per
+ * sample), a failure score that grows with every timeout and halves every
+ * FAILURE_HALF_LIFE without one, and a window of recent RTT samples for
+ * percentile-based hedge delays.
+ *
+ * The retransmission timeout follows RFC 6298: RTO = SRTT + 4 * RTTVAR,
+ * clamped to [MIN_RTO, MAX_RTO], and INITIAL_RTO until the first sample.
+ * Successive retries of a query back off exponentially from it, with jitter
+ * so that queries lost together are not all resent in lockstep.
+ *
+ * Servers that have not answered yet start with a small random SRTT so that
+ * every upstream gets probed early on.
+ *
+ * Every RTT sample also goes into a histogram published, with the counters,
+ * as the Metrics component "DnsUpstream <address>#<port>". Upstreams that
+ * are not configured but discovered, like the nameservers an iterative
+ * resolver meets, can be created unpublished so they cost no component.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+public class DnsUpstream {
+
+    private static final int SAMPLES = 128;
+    private static final long FAILURE_HALF_LIFE = TimeUnit.SECONDS.toNanos(30);
+
+    // RTO bounds; the floor keeps a burst of fast answers from making retries too eager
+    public static final long MIN_RTO = TimeUnit.MILLISECONDS.toNanos(50);
+    public static final long INITIAL_RTO = TimeUnit.SECONDS.toNanos(1);
+    public static final long MAX_RTO = TimeUnit.SECONDS.toNanos(60);
+
+    // Retransmission timeouts are spread by up to this fraction either way
+    private static final double JITTER = 0.2;
+
+    // A server whose failure score reaches this is only used when all others are worse
+    private static final double UNHEALTHY_SCORE = 3;
+
+    private final InetSocketAddress address;
+
+    private double srtt; // nanoseconds
+    private double rttvar;
+    private double failureScore;
+    private long lastFailure;
+
+    // Recent RTT samples, in a ring
+    private final long[] samples = new long[SAMPLES];
+    private int sampleCount;
+    private int sampleIndex;
+
+    // Cached percentile, recomputed every SAMPLES / 8 new samples
+    private final long[] sorted = new long[SAMPLES];
+    private double cachedPercentile = -1;
+    private long cachedPercentileValue;
+    private int samplesSinceSort;
+
+    private long queries;
+    private long responses;
+    private long timeouts;
+
+    // Every RTT sample, for the metrics; the ring above only keeps recent ones. Null if unpublished
+    private final LatencyHistogram rttHistogram;
+
+    public DnsUpstream(InetSocketAddress address) {
+        this(address, true);
+    }
+
+    public DnsUpstream(InetSocketAddress address, boolean published) {
+        this.address = address;
+        this.srtt = TimeUnit.MILLISECONDS.toNanos(1 + ThreadLocalRandom.current().nextInt(32));
+        if (!published) {
+            this.rttHistogram = null;
+            return;
+        }
+
+        Metrics metrics = Metrics.forComponent(
+                "DnsUpstream " + address.getAddress().getHostAddress() + "#" + address.getPort());
+        this.rttHistogram = metrics.histogram("rttNanos");
+        metrics.gauge("queries", this::getQueries);
+        metrics.gauge("responses", this::getResponses);
+        metrics.gauge("timeouts", this::getTimeouts);
+        metrics.gauge("srttNanos", () -> (long) getSrtt());
+        metrics.gauge("rtoNanos", this::rto);
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    public synchronized void recordQuery() {
+        queries++;
+    }
+
+    /**
+     * Records a response whose RTT is known unambiguously (the query was not
+     * retransmitted to this server, per Karn's algorithm).
+     */
+    public synchronized void recordRtt(long rttNanos) {
+        if (sampleCount == 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2.0;
+        } else {
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+
+        samples[sampleIndex] = rttNanos;
+        sampleIndex = (sampleIndex + 1) % SAMPLES;
+        sampleCount = Math.min(sampleCount + 1, SAMPLES);
+        samplesSinceSort++;
+        if (rttHistogram != null) {
+            rttHistogram.record(rttNanos);
+        }
+
+        recordResponse();
+    }
+
+    // Records a response without an RTT sample
+    public synchronized void recordResponse() {
+        responses++;
+        failureScore = decayedFailureScore(System.nanoTime()) / 2;
+        lastFailure = System.nanoTime();
+    }
+
+    public synchronized void recordTimeout() {
+        long now = System.nanoTime();
+        timeouts++;
+        failureScore = decayedFailureScore(now) + 1;
+        lastFailure = now;
+    }
+
+    public synchronized long getQueries() {
+        return queries;
+    }
+
+    public synchronized long getResponses() {
+        return responses;
+    }
+
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    public synchronized double getSrtt() {
+        return srtt;
+    }
+
+    // Retransmission timeout for a first transmission to this server, in nanoseconds
+    public synchronized long rto() {
+        if (sampleCount == 0) {
+            return INITIAL_RTO;
+        }
+        long rto = (long) (srtt + 4 * rttvar);
+        return Math.max(MIN_RTO, Math.min(MAX_RTO, rto));
+    }
+
+    public synchronized boolean isHealthy() {
+        return decayedFailureScore(System.nanoTime()) < UNHEALTHY_SCORE;
+    }
+
+    /**
+     * Selection score, lower is better: the SRTT doubled for every point of
+     * (decayed) failure score.
+     */
+    public synchronized double score() {
+        return srtt * Math.pow(2, decayedFailureScore(System.nanoTime()));
+    }
+
+    /**
+     * The given percentile (0-100) of recent RTTs, or -1 until enough samples
+     * have been collected to make it meaningful.
+     */
+    public synchronized long rttPercentile(double percentile) {
+        if (sampleCount < SAMPLES / 8) {
+            return -1;
+        }
+
+        if (percentile != cachedPercentile || samplesSinceSort >= SAMPLES / 8) {
+            System.arraycopy(samples, 0, sorted, 0, sampleCount);
+            Arrays.sort(sorted, 0, sampleCount);
+            int index = (int) Math.ceil(percentile / 100 * sampleCount) - 1;
+            cachedPercentileValue = sorted[Math.max(0, Math.min(sampleCount - 1, index))];
+            cachedPercentile = percentile;
+            samplesSinceSort = 0;
+        }
+        return cachedPercentileValue;
+    }
+
+    /**
+     * Timeout for the given retry of a query (0 for the first transmission):
+     * the RTO doubled per retry and jittered, capped at ceiling.
+     */
+    public static long backoff(long rto, int retry, long ceiling) {
+        long timeout = rto;
+        for (int i = 0; i < retry && timeout < ceiling; i++) {
+            timeout *= 2;
+        }
+        double jitter = 1 + JITTER * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return Math.max(1, Math.min(ceiling, (long) (timeout * jitter)));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return address.getAddress().getHostAddress() + ":" + address.getPort() + "\tsrtt "
+                + String.format("%.3f", srtt / 1e6) + " ms\trto " + String.format("%.3f", rto() / 1e6) + " ms\t"
+                + queries + " queries\t" + responses
+                + " responses\t" + timeouts + " timeouts";
+    }
+
+    private double decayedFailureScore(long now) {
+        if (failureScore == 0) {
+            return 0;
+        }
+        return failureScore * Math.pow(0.5, (double) (now - lastFailure) / FAILURE_HALF_LIFE);
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * FrameProtocol
+ *
+ * Length-prefixed binary alternative to the newline-delimited protocol of the
+ * TCP echo servers, for payloads that are large or not text. A client opts in
+ * by sending HELLO as the first bytes on the connection; a text line never
+ * starts with a NUL byte, so the server can tell the two apart from the first
+ * byte and keeps serving lines to everyone else. The server accepts by sending
+ * HELLO back.
+ *
+ * Every message after that is a frame: a 12-byte big-endian header followed
+ * by the payload.
+ *
+ *   0  length      payload bytes after the header (at most MAX_PAYLOAD_LENGTH)
+ *   4  request id  chosen by the client, copied into the response
+ *   8  opcode      what to do with the payload (OP_*)
+ *  10  status      0 in requests; STATUS_* in responses
+ *
+ * Responses carry the request's id, so a client can have many requests in
+ * flight and match responses in whatever order they arrive. The servers here
+ * happen to answer each connection in order.
+ *
+ * The server streams each payload through one pooled chunk of at most
+ * CHUNK_SIZE bytes, read, transformed in place and written back in turn, so a
+ * connection never holds more than a chunk, whatever length its header
+ * claims, and a payload is never scanned for delimiters, decoded or copied
+ * whole. The transforms work byte by byte, which is what lets the response
+ * header go out before the rest of the payload has arrived.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public final class FrameProtocol {
+
+	// Version 1 of the protocol; a NUL first byte marks it as not a text line
+	private static final byte[] HELLO = { 0, 'T', 'F', 1 };
+
+	public static final int HEADER_LENGTH = 12;
+
+	// Larger requests are answered with STATUS_TOO_LARGE and the connection is closed
+	public static final int MAX_PAYLOAD_LENGTH = 64 << 20;
+
+	public static final int OP_ECHO = 0;
+	public static final int OP_UPPER_CASE = 1;
+	public static final int OP_LOWER_CASE = 2;
+
+	public static final int STATUS_OK = 0;
+	public static final int STATUS_UNKNOWN_OPCODE = 1;
+	public static final int STATUS_TOO_LARGE = 2;
+
+	// Payloads are read, transformed and written back this much at a time, the largest pooled array
+	private static final int CHUNK_SIZE = BufferPool.MAX_SIZE;
+
+	// Chunk arrays shared by every connection of the process
+	private static final BufferPool POOL = new BufferPool();
+
+	private FrameProtocol() {
+	}
+
+	/**
+	 * Called by a server per request served: the payload length and the time
+	 * from the header being read to the response being written.
+	 */
+	public interface Listener {
+		void served(int length, long nanos);
+	}
+
+	// Header fields of one frame; reused for every frame of a connection
+	public static final class Header {
+		public int length;
+		public int requestId;
+		public int opcode;
+		public int status;
+	}
+
+	/**
+	 * Looks at the first byte of a new connection. If it starts HELLO, reads
+	 * the rest, sends HELLO back and returns true. Otherwise puts the byte
+	 * back for the line reader and returns false.
+	 */
+	public static boolean accept(PushbackInputStream in, OutputStream out) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return false;
+		}
+		if (first != HELLO[0]) {
+			in.unread(first);
+			return false;
+		}
+
+		byte[] hello = new byte[HELLO.length];
+		hello[0] = (byte) first;
+		new DataInputStream(in).readFully(hello, 1, HELLO.length - 1);
+		for (int i = 1; i < HELLO.length; i++) {
+			if (hello[i] != HELLO[i]) {
+				throw new IOException("Unsupported framing hello");
+			}
+		}
+
+		out.write(HELLO);
+		out.flush();
+		return true;
+	}
+
+	// Client side of accept(): sends HELLO and waits for the server's
+	public static void connect(InputStream in, OutputStream out) throws IOException {
+		out.write(HELLO);
+		out.flush();
+
+		byte[] reply = new byte[HELLO.length];
+		new DataInputStream(in).readFully(reply);
+		for (int i = 0; i < HELLO.length; i++) {
+			if (reply[i] != HELLO[i]) {
+				throw new IOException("Server does not speak the framed protocol");
+			}
+		}
+	}
+
+	/**
+	 * Reads the next header. Returns false if the stream ends cleanly before
+	 * one; a stream ending inside a header throws EOFException.
+	 */
+	public static boolean readHeader(DataInputStream in, Header header) throws IOException {
+		int first = in.read();
+		if (first < 0) {
+			return false;
+		}
+		header.length = (first << 24) | (in.readUnsignedByte() << 16) | in.readUnsignedShort();
+		header.requestId = in.readInt();
+		header.opcode = in.readUnsignedShort();
+		header.status = in.readUnsignedShort();
+		return true;
+	}
+
+	public static void writeHeader(DataOutputStream out, int length, int requestId, int opcode, int status)
+			throws IOException {
+		out.writeInt(length);
+		out.writeInt(requestId);
+		out.writeShort(opcode);
+		out.writeShort(status);
+	}
+
+	// The transform an opcode asks for, or null if the opcode is unknown
+	public static ByteTransform transform(int opcode) {
+		switch (opcode) {
+		case OP_ECHO:
+			return ByteTransform.IDENTITY;
+		case OP_UPPER_CASE:
+			return ByteTransform.UPPER_CASE;
+		case OP_LOWER_CASE:
+			return ByteTransform.LOWER_CASE;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Answers frames until the client closes its side. Responses are flushed
+	 * whenever no further input is already waiting, so pipelined requests are
+	 * answered in batches. The listener may be null.
+	 */
+	public static void serve(DataInputStream in, DataOutputStream out, Listener listener) throws IOException {
+		Header header = new Header();
+
+		while (readHeader(in, header)) {
+			long receivedAt = System.nanoTime();
+			int length = header.length;
+
+			if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+				// the payload cannot be skipped safely, so this is the last response
+				writeHeader(out, 0, header.requestId, header.opcode, STATUS_TOO_LARGE);
+				out.flush();
+				return;
+			}
+
+			ByteTransform transform = transform(header.opcode);
+			if (transform == null) {
+				skipFully(in, length);
+				writeHeader(out, 0, header.requestId, header.opcode, STATUS_UNKNOWN_OPCODE);
+			} else {
+				writeHeader(out, length, header.requestId, header.opcode, STATUS_OK);
+				byte[] chunk = POOL.acquire(Math.min(length, CHUNK_SIZE));
+				try {
+					for (int done = 0; done < length; ) {
+						int n = Math.min(chunk.length, length - done);
+						in.readFully(chunk, 0, n);
+						transform.apply(ByteBuffer.wrap(chunk, 0, n));
+						out.write(chunk, 0, n);
+						done += n;
+					}
+				} finally {
+					POOL.release(chunk);
+				}
+			}
+
+			if (in.available() == 0) {
+				out.flush();
+			}
+			if (listener != null) {
+				listener.served(length, System.nanoTime() - receivedAt);
+			}
+		}
+		out.flush();
+	}
+
+	// Discards exactly length bytes, or throws EOFException if the stream ends first
+	private static void skipFully(DataInputStream in, int length) throws IOException {
+		while (length > 0) {
+			int skipped = in.skipBytes(length);
+			if (skipped == 0) {
+				if (in.read() < 0) {
+					throw new EOFException();
+				}
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+	}
+}
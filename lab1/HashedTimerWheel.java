@@ -0,0 +1,144 @@
+/**
+ * Hashed Timer Wheel
+ *
+ * Schedules many short timeouts in O(1). Time is divided into ticks and each
+ * timeout is hashed into one of wheelSize buckets by the tick it is due in;
+ * advance() expires the buckets for the ticks that have passed.
+ *
+ * The wheel is not thread safe. It is meant to be owned and driven by a
+ * single event loop, which calls advance() after every select().
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.util.concurrent.TimeUnit;
+
+public final class HashedTimerWheel {
+
+    /**
+     * A scheduled task. Cancelling it removes it from its bucket right away.
+     */
+    public static final class Timeout {
+        private final HashedTimerWheel wheel;
+        private final Runnable task;
+        private final long dueTick;
+        private Timeout prev;
+        private Timeout next;
+        private boolean scheduled;
+
+        private Timeout(HashedTimerWheel wheel, Runnable task, long dueTick) {
+            this.wheel = wheel;
+            this.task = task;
+            this.dueTick = dueTick;
+        }
+
+        public void cancel() {
+            if (scheduled) {
+                wheel.unlink(this);
+            }
+        }
+
+        public boolean isScheduled() {
+            return scheduled;
+        }
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Timeout[] buckets;
+    private final int mask;
+
+    // Last tick whose bucket has been processed
+    private long currentTick;
+    private int size;
+
+    public HashedTimerWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be a power of two");
+        }
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.startNanos = System.nanoTime();
+        this.buckets = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    /**
+     * Runs the task once delayNanos have passed, rounded up to the next tick.
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos - startNanos;
+        long dueTick = Math.max((deadline + tickNanos - 1) / tickNanos, currentTick + 1);
+
+        Timeout timeout = new Timeout(this, task, dueTick);
+        int bucket = (int) (dueTick & mask);
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+        timeout.scheduled = true;
+        size++;
+
+        return timeout;
+    }
+
+    /**
+     * Expires every timeout due at or before the given System.nanoTime()
+     * value and runs its task.
+     */
+    public void advance(long nowNanos) {
+        long nowTick = (nowNanos - startNanos) / tickNanos;
+
+        while (currentTick < nowTick) {
+            currentTick++;
+
+            // Unlink everything due first, so tasks are free to schedule and
+            // cancel other timeouts while they run
+            Timeout expired = null;
+            Timeout timeout = buckets[(int) (currentTick & mask)];
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.dueTick <= currentTick) {
+                    unlink(timeout);
+                    timeout.next = expired;
+                    expired = timeout;
+                }
+                timeout = next;
+            }
+
+            while (expired != null) {
+                Timeout next = expired.next;
+                expired.next = null;
+                expired.task.run();
+                expired = next;
+            }
+        }
+    }
+
+    // Time until the next tick boundary, for use as a select() timeout
+    public long nanosUntilNextTick(long nowNanos) {
+        long nextTick = (nowNanos - startNanos) / tickNanos + 1;
+        return startNanos + nextTick * tickNanos - nowNanos;
+    }
+
+    // number of timeouts still scheduled
+    public int size() {
+        return size;
+    }
+
+    private void unlink(Timeout timeout) {
+        int bucket = (int) (timeout.dueTick & mask);
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.scheduled = false;
+        size--;
+    }
+}
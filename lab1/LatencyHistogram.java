@@ -0,0 +1,133 @@
+/**
+ * LatencyHistogram
+ *
+ * Log-linear histogram of non-negative long values (latencies in nanoseconds,
+ * sizes in bytes), in the style of HdrHistogram: every power of two is split
+ * into SUB_BUCKETS linear buckets, so any recorded value is reported within
+ * 1% of its true value, from 1 up to Long.MAX_VALUE, in a fixed 58 KB array.
+ *
+ * Recording is one atomic increment plus, for a new maximum, a compare and
+ * set, so one histogram can be shared by many threads without locking.
+ * Percentiles are read from a snapshot of the counts while recording goes on.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+	// Linear buckets per power of two; 2^7 keeps the error under 1%
+	private static final int SUB_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Values below SUB_BUCKETS get a bucket each, then SUB_BUCKETS per power of two up to 2^63
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		counts.incrementAndGet(bucket(value));
+		total.add(value);
+
+		long current = max.get();
+		while (value > current && !max.compareAndSet(current, value)) {
+			current = max.get();
+		}
+	}
+
+	// Adds every value recorded in other to this histogram
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count != 0) {
+				counts.addAndGet(i, count);
+			}
+		}
+		total.add(other.total.sum());
+
+		long otherMax = other.max.get();
+		long current = max.get();
+		while (otherMax > current && !max.compareAndSet(current, otherMax)) {
+			current = max.get();
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += counts.get(i);
+		}
+		return count;
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long count = getCount();
+		return count == 0 ? 0 : (double) total.sum() / count;
+	}
+
+	/**
+	 * Returns the value at the given percentile (0-100): the highest value
+	 * that falls in the same bucket as the value at that rank, or 0 if
+	 * nothing was recorded.
+	 */
+	public long getPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0) {
+			return 0;
+		}
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestInBucket(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	@Override
+	public String toString() {
+		return "count=" + getCount() + " p50=" + getPercentile(50) + " p99=" + getPercentile(99) + " p99.9="
+				+ getPercentile(99.9) + " max=" + getMax();
+	}
+
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int msb = 63 - Long.numberOfLeadingZeros(value);
+		int shift = msb - SUB_BITS;
+		// the top SUB_BITS + 1 bits, of which the highest is always set
+		int sub = (int) (value >>> shift);
+		return (shift + 1) * SUB_BUCKETS + sub - SUB_BUCKETS;
+	}
+
+	private static long highestInBucket(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		long next = (sub + 1) << shift;
+		// the last bucket ends at Long.MAX_VALUE
+		return next < 0 ? Long.MAX_VALUE : next - 1;
+	}
+}
@@ -0,0 +1,115 @@
+/**
+ * LineReader
+ *
+ * Reads '\n'-terminated lines from a stream into one reusable byte array,
+ * replacing BufferedReader.readLine() on the servers' request path. Each line
+ * is returned as a ByteBuffer view of the internal array, terminator included,
+ * so it can be transformed in place and written straight back to the client.
+ * A "\r\n" terminator is returned as "\n", and a last line without one gets
+ * one appended, so every reply ends in exactly one newline as before.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+public class LineReader {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	// Lines this long or longer are rejected rather than buffered without bound
+	static final int MAX_LINE_LENGTH = 1 << 20;
+
+	private final InputStream in;
+	private byte[] data = new byte[INITIAL_CAPACITY];
+	private ByteBuffer view = ByteBuffer.wrap(data);
+
+	// Bytes read from the stream are in [start, end)
+	private int start;
+	private int end;
+
+	public LineReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Returns the next line, terminator included, or null at the end of the
+	 * stream. The buffer is only valid until the next call.
+	 */
+	public ByteBuffer readLine() throws IOException {
+		int scanned = start;
+
+		while (true) {
+			for (; scanned < end; scanned++) {
+				if (data[scanned] == '\n') {
+					return line(scanned + 1);
+				}
+			}
+
+			int scannedOffset = scanned - start;
+			if (!fill()) {
+				if (start == end) {
+					return null;
+				}
+				data[end++] = '\n'; // fill() always leaves room for this
+				return line(end);
+			}
+			scanned = start + scannedOffset;
+		}
+	}
+
+	/**
+	 * Returns true if a complete line is already buffered, so the next
+	 * readLine() will not block. Servers flush their replies when it is false.
+	 */
+	public boolean hasBufferedLine() {
+		for (int i = start; i < end; i++) {
+			if (data[i] == '\n') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// Returns [start, lineEnd) and moves past it
+	private ByteBuffer line(int lineEnd) {
+		int lineStart = start;
+		start = lineEnd;
+
+		int length = lineEnd - lineStart;
+		if (length >= 2 && data[lineEnd - 2] == '\r') {
+			data[lineEnd - 2] = '\n';
+			length--;
+		}
+
+		view.limit(lineStart + length).position(lineStart);
+		return view;
+	}
+
+	/**
+	 * Reads more of the stream, first compacting or growing the array so
+	 * that at least one byte stays free. Returns false at the end of the stream.
+	 */
+	private boolean fill() throws IOException {
+		if (start > 0) {
+			System.arraycopy(data, start, data, 0, end - start);
+			end -= start;
+			start = 0;
+		}
+		if (data.length - end < 2) {
+			if (data.length >= MAX_LINE_LENGTH) {
+				throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes");
+			}
+			data = Arrays.copyOf(data, data.length * 2);
+			view = ByteBuffer.wrap(data);
+		}
+
+		int n = in.read(data, end, data.length - end - 1);
+		if (n < 0) {
+			return false;
+		}
+		end += n;
+		return true;
+	}
+}
@@ -0,0 +1,476 @@
+/**
+ * LoadGenerator
+ *
+ * Drives UDPServer, TCPServer or MultiThreadedTCPServer with the same
+ * protocol as UDPClient and TCPClient (one line out, the upper-cased line
+ * back) and reports throughput and latency percentiles. -t frame sends the
+ * same requests to the TCP servers over FrameProtocol instead, one frame per
+ * request without the newline.
+ *
+ * Usage: java LoadGenerator [-t tcp|udp|frame] [-h host] [-p port] [-c clients]
+ *        [-r rate] [-d seconds] [-w warmup-seconds] [-s payload-bytes]
+ *        [-n requests-per-connection]
+ *
+ * Closed loop (the default): each of the -c clients sends a request, waits
+ * for its reply and sends the next, so the load adapts to the server.
+ *
+ * Open loop (-r requests/s): the rate is split over the clients and every
+ * request has a scheduled send time. A request's latency is measured from
+ * that time rather than from when it was actually sent, so a server that
+ * stalls is charged for the requests that queued up behind the stall
+ * (coordinated omission). Over TCP the requests are pipelined on each
+ * connection; over UDP replies are matched to requests by sequence number,
+ * and frames carry it as their request id as well.
+ *
+ * Each request starts with a 10-digit sequence number followed by lower-case
+ * filler up to -s bytes, newline included. In the closed loop -n opens a new
+ * connection (or UDP socket) after that many requests; 0 keeps one for the
+ * whole run. Requests started during the warm-up are not counted.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public class LoadGenerator {
+
+	private static final String USAGE = "Usage: java LoadGenerator [-t tcp|udp|frame] [-h host] [-p port] [-c clients] "
+			+ "[-r rate] [-d seconds] [-w warmup-seconds] [-s payload-bytes] [-n requests-per-connection]";
+
+	// Digits of the sequence number at the start of every request
+	private static final int SEQUENCE_DIGITS = 10;
+
+	// A request without a reply for this long is counted as lost (UDP) or waited on again (TCP)
+	private static final int REPLY_TIMEOUT_MILLIS = 1000;
+
+	// Largest reply a UDP client can receive
+	private static final int MAX_DATAGRAM = 65507;
+
+	public static void main(String[] args) throws Exception
+	{
+		String transport = "tcp";
+		String host = "localhost";
+		int port = -1;
+		int clients = 1;
+		double rate = 0;
+		int duration = 10;
+		int warmup = 1;
+		int payloadSize = 64;
+		int perConnection = 0;
+
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 >= args.length) {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+			switch (args[i]) {
+			case "-t":
+				transport = args[++i];
+				break;
+			case "-h":
+				host = args[++i];
+				break;
+			case "-p":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-c":
+				clients = Integer.parseInt(args[++i]);
+				break;
+			case "-r":
+				rate = Double.parseDouble(args[++i]);
+				break;
+			case "-d":
+				duration = Integer.parseInt(args[++i]);
+				break;
+			case "-w":
+				warmup = Integer.parseInt(args[++i]);
+				break;
+			case "-s":
+				payloadSize = Integer.parseInt(args[++i]);
+				break;
+			case "-n":
+				perConnection = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		boolean udp = transport.equals("udp");
+		boolean frames = transport.equals("frame");
+		if (!udp && !frames && !transport.equals("tcp")) {
+			System.out.println(USAGE);
+			System.exit(1);
+		}
+		int maxPayloadSize = udp ? MAX_DATAGRAM
+				: frames ? FrameProtocol.MAX_PAYLOAD_LENGTH : LineReader.MAX_LINE_LENGTH - 1;
+		if (payloadSize < SEQUENCE_DIGITS + 1 || payloadSize > maxPayloadSize) {
+			System.out.println("Payload size must be between " + (SEQUENCE_DIGITS + 1) + " and " + maxPayloadSize);
+			System.exit(1);
+		}
+		if (port < 0) {
+			// the ports the servers listen on by default
+			port = udp ? 9876 : 6789;
+		}
+
+		InetSocketAddress server = new InetSocketAddress(host, port);
+		long start = System.nanoTime();
+		long measureStart = start + TimeUnit.SECONDS.toNanos(warmup);
+		long end = measureStart + TimeUnit.SECONDS.toNanos(duration);
+
+		List<Client> running = new ArrayList<Client>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int i = 0; i < clients; i++) {
+			Client client = new Client(server, udp, frames, payloadSize, perConnection, rate / clients, start, measureStart,
+					end);
+			Thread thread = new Thread(client, "load-client-" + i);
+			thread.start();
+			running.add(client);
+			threads.add(thread);
+		}
+
+		System.out.println(transport + " " + (rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop")
+				+ ", " + clients + " clients, " + payloadSize + "-byte requests, " + warmup + " s warm-up, " + duration
+				+ " s measured, against " + server);
+
+		LatencyHistogram latency = new LatencyHistogram();
+		long completed = 0;
+		long errors = 0;
+		long lost = 0;
+		for (int i = 0; i < clients; i++) {
+			Client client = running.get(i);
+			threads.get(i).join();
+			latency.add(client.latency);
+			completed += client.completed.sum();
+			errors += client.errors.sum();
+			lost += client.lost.sum();
+		}
+
+		System.out.printf("Requests: %d completed (%.1f/s), %d errors, %d lost%n", completed,
+				completed / (double) duration, errors, lost);
+		System.out.printf("Latency (us): mean=%.1f p50=%.1f p90=%.1f p99=%.1f p99.9=%.1f max=%.1f%n",
+				latency.getMean() / 1000, micros(latency.getPercentile(50)), micros(latency.getPercentile(90)),
+				micros(latency.getPercentile(99)), micros(latency.getPercentile(99.9)), micros(latency.getMax()));
+	}
+
+	private static double micros(long nanos) {
+		return nanos / 1000.0;
+	}
+
+	/**
+	 * One simulated client: a connection (or UDP socket) and the thread
+	 * driving it (two in the open loop), with its own histogram so clients
+	 * never contend.
+	 */
+	private static class Client implements Runnable {
+		private final InetSocketAddress server;
+		private final boolean udp;
+		private final boolean frames;
+		private final int perConnection;
+		private final long start;
+		private final long measureStart;
+		private final long end;
+
+		// Nanoseconds between scheduled requests, or 0 for the closed loop
+		private final long interval;
+
+		private final byte[] request;
+		private final LatencyHistogram latency = new LatencyHistogram();
+		private final LongAdder completed = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LongAdder lost = new LongAdder();
+
+		private Socket socket;
+		private OutputStream out;
+		private LineReader in;
+		private InputStream frameIn;
+		private final byte[] frameHeader = new byte[FrameProtocol.HEADER_LENGTH];
+		private byte[] framePayload;
+		private DatagramSocket datagramSocket;
+		private DatagramPacket receivePacket;
+
+		private Client(InetSocketAddress server, boolean udp, boolean frames, int payloadSize, int perConnection, double rate,
+				long start, long measureStart, long end) {
+			this.server = server;
+			this.udp = udp;
+			this.frames = frames;
+			this.perConnection = perConnection;
+			this.start = start;
+			this.measureStart = measureStart;
+			this.end = end;
+			this.interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / rate) : 0;
+
+			// sequence number, then "abc...z" repeated, then the newline the TCP servers look for
+			request = new byte[payloadSize];
+			for (int i = SEQUENCE_DIGITS; i < payloadSize - 1; i++) {
+				request[i] = (byte) ('a' + (i - SEQUENCE_DIGITS) % 26);
+			}
+			request[payloadSize - 1] = '\n';
+		}
+
+		public void run() {
+			try {
+				if (interval > 0) {
+					openLoop();
+				} else {
+					closedLoop();
+				}
+			} catch (IOException | InterruptedException e) {
+				System.out.println("Client " + Thread.currentThread().getName() + " stopped: " + e.getMessage());
+			} finally {
+				disconnect();
+			}
+		}
+
+		private void closedLoop() throws IOException {
+			connect();
+			for (long seq = 0; ; seq++) {
+				if (perConnection > 0 && seq > 0 && seq % perConnection == 0) {
+					disconnect();
+					connect();
+				}
+
+				long sentAt = System.nanoTime();
+				if (sentAt >= end) {
+					return;
+				}
+				send(seq);
+
+				// a UDP reply to an earlier, timed-out request is skipped, and TCP replies are waited for
+				long reply;
+				do {
+					reply = receive();
+				} while (udp ? reply >= 0 && reply < seq : reply == -1);
+
+				long now = System.nanoTime();
+				if (sentAt < measureStart) {
+					continue;
+				}
+				if (reply == seq) {
+					latency.record(now - sentAt);
+					completed.increment();
+				} else if (reply == -1) {
+					lost.increment();
+				} else {
+					errors.increment();
+					if (!udp) {
+						throw new IOException("Connection out of step with its replies");
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends on schedule from a separate thread while this one takes the
+		 * replies, each charged from the time its request was due.
+		 */
+		private void openLoop() throws IOException, InterruptedException {
+			connect();
+			long total = (end - start) / interval;
+			LongAdder sent = new LongAdder();
+
+			Thread sender = new Thread(() -> {
+				try {
+					for (long seq = 0; seq < total; seq++) {
+						long due = start + seq * interval;
+						long wait = due - System.nanoTime();
+						if (wait > 0) {
+							LockSupport.parkNanos(wait);
+						}
+						send(seq);
+						sent.increment();
+					}
+					if (!udp) {
+						out.flush();
+					}
+				} catch (IOException e) {
+					System.out.println("Sender stopped: " + e.getMessage());
+				}
+			}, Thread.currentThread().getName() + "-sender");
+			sender.start();
+
+			long received = 0;
+			long expected = 0;
+			while (received < total) {
+				long reply = receive();
+				long now = System.nanoTime();
+				if (reply == -1) {
+					// nothing for a whole timeout after the last request went out: the rest are lost
+					if (!sender.isAlive()) {
+						break;
+					}
+					continue;
+				}
+				if (reply < expected || reply >= total) {
+					errors.increment();
+					continue;
+				}
+
+				// UDP replies that never came are the gap in sequence numbers
+				expected = reply + 1;
+				received++;
+
+				long due = start + reply * interval;
+				if (due >= measureStart) {
+					latency.record(now - due);
+					completed.increment();
+				}
+			}
+			sender.join();
+
+			// only requests due after the warm-up count as lost, as in the closed loop
+			long firstMeasured = (measureStart - start + interval - 1) / interval;
+			long missing = Math.max(0, sent.sum() - firstMeasured) - completed.sum();
+			if (missing > 0) {
+				lost.add(missing);
+			}
+		}
+
+		private void connect() throws IOException {
+			if (udp) {
+				datagramSocket = new DatagramSocket();
+				datagramSocket.connect(server);
+				datagramSocket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+				receivePacket = new DatagramPacket(new byte[MAX_DATAGRAM], MAX_DATAGRAM);
+			} else {
+				socket = new Socket();
+				socket.setTcpNoDelay(true);
+				socket.connect(server);
+				socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+				out = new BufferedOutputStream(socket.getOutputStream(), Math.max(8192, request.length));
+				if (frames) {
+					frameIn = new BufferedInputStream(socket.getInputStream());
+					FrameProtocol.connect(frameIn, out);
+					framePayload = new byte[request.length];
+				} else {
+					in = new LineReader(socket.getInputStream());
+				}
+			}
+		}
+
+		private void disconnect() {
+			if (datagramSocket != null) {
+				datagramSocket.close();
+				datagramSocket = null;
+			}
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to do with it
+				}
+				socket = null;
+			}
+		}
+
+		// Only the sender thread writes, so the template can be reused
+		private void send(long seq) throws IOException {
+			int requestId = (int) seq;
+			for (int i = SEQUENCE_DIGITS - 1; i >= 0; i--) {
+				request[i] = (byte) ('0' + seq % 10);
+				seq /= 10;
+			}
+
+			if (udp) {
+				// everything but the newline, as UDPClient sends it
+				datagramSocket.send(new DatagramPacket(request, request.length - 1));
+			} else if (frames) {
+				// the frame's length replaces the newline
+				ByteBuffer.wrap(frameHeader).putInt(request.length - 1).putInt(requestId)
+						.putShort((short) FrameProtocol.OP_UPPER_CASE).putShort((short) FrameProtocol.STATUS_OK);
+				out.write(frameHeader);
+				out.write(request, 0, request.length - 1);
+				out.flush();
+			} else {
+				out.write(request);
+				out.flush();
+			}
+		}
+
+		/**
+		 * Returns the sequence number of the next reply, -1 if none came within
+		 * REPLY_TIMEOUT_MILLIS, -2 if the reply is malformed, or throws at the
+		 * end of a TCP stream.
+		 */
+		private long receive() throws IOException {
+			ByteBuffer reply;
+			try {
+				if (udp) {
+					datagramSocket.receive(receivePacket);
+					reply = ByteBuffer.wrap(receivePacket.getData(), 0, receivePacket.getLength());
+				} else if (frames) {
+					reply = receiveFrame();
+				} else {
+					reply = in.readLine();
+					if (reply == null) {
+						throw new EOFException("Server closed the connection");
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				return -1;
+			}
+
+			// the reply must be the request, upper-cased
+			int expectedLength = udp || frames ? request.length - 1 : request.length;
+			if (reply == null || reply.remaining() != expectedLength) {
+				return -2;
+			}
+			long seq = 0;
+			for (int i = 0; i < SEQUENCE_DIGITS; i++) {
+				byte b = reply.get(reply.position() + i);
+				if (b < '0' || b > '9') {
+					return -2;
+				}
+				seq = seq * 10 + (b - '0');
+			}
+			return seq;
+		}
+
+		/**
+		 * Reads one response frame into framePayload and returns its payload,
+		 * or null if the server answered with an error status. Times out like a line read
+		 * if nothing has arrived; once a frame has started it is read to the
+		 * end, so a slow large reply cannot leave the stream mid-frame.
+		 */
+		private ByteBuffer receiveFrame() throws IOException {
+			int n = frameIn.read(frameHeader);
+			if (n < 0) {
+				throw new EOFException("Server closed the connection");
+			}
+			readRest(frameHeader, n, frameHeader.length);
+
+			ByteBuffer header = ByteBuffer.wrap(frameHeader);
+			int length = header.getInt();
+			header.getInt(); // request id, checked through the sequence number
+			header.getShort();
+			int status = header.getShort() & 0xffff;
+			if (length < 0 || length > framePayload.length) {
+				throw new IOException("Reply of " + length + " bytes does not fit the request");
+			}
+			readRest(framePayload, 0, length);
+			return status == FrameProtocol.STATUS_OK ? ByteBuffer.wrap(framePayload, 0, length) : null;
+		}
+
+		// Fills buffer[from, to) from frameIn, waiting through read timeouts
+		private void readRest(byte[] buffer, int from, int to) throws IOException {
+			while (from < to) {
+				try {
+					int n = frameIn.read(buffer, from, to - from);
+					if (n < 0) {
+						throw new EOFException("Server closed the connection mid-frame");
+					}
+					from += n;
+				} catch (SocketTimeoutException e) {
+					// the frame has started, so the rest is on its way
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/**
+ * Log
+ *
+ * Asynchronous logging for the servers and the DNS client. Events go into a
+ * bounded ring of preallocated slots with one compare-and-set, and a single
+ * background thread formats and writes them to standard output in batches,
+ * so threads on the request path never wait for the console or each other.
+ * When the ring is full, log events are dropped and counted rather than
+ * slowing the caller down; output() lines (program results) wait for room.
+ *
+ * Messages are written exactly as given, one per line, with each "{}"
+ * replaced by the next argument. Formatting happens on the writer thread, so
+ * a call only stores references: pass values as arguments rather than
+ * concatenating them into the message.
+ *
+ * Events below the level set with -Dlog.level (DEBUG, INFO, WARN, ERROR or
+ * OFF; INFO by default) are discarded before anything is stored. A Sampler
+ * lets through one event in n for messages that can repeat at packet rate.
+ * The written and dropped counts are published as the Metrics component Log.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.io.PrintStream;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class Log {
+
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR, OFF
+	}
+
+	// Slots in the ring, a power of two
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+
+	// Batches are written once they reach this many characters
+	private static final int MAX_BATCH_CHARS = 64 * 1024;
+
+	// How long the writer sleeps when there is nothing to write
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	// How long exiting waits for the ring to drain
+	private static final long EXIT_FLUSH_MILLIS = 2000;
+
+	private static final Level THRESHOLD = Level.valueOf(System.getProperty("log.level", "INFO").toUpperCase(Locale.ROOT));
+
+	private static final Slot[] SLOTS = new Slot[CAPACITY];
+
+	// Next sequence to claim, next sequence the writer will consume, and how far it has written
+	private static final AtomicLong TAIL = new AtomicLong();
+	private static volatile long head;
+	private static volatile long flushed;
+
+	private static final LongAdder WRITTEN = new LongAdder();
+	private static final LongAdder DROPPED = new LongAdder();
+
+	private static final PrintStream OUT = System.out;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			SLOTS[i] = new Slot();
+		}
+
+		Thread writer = new Thread(Log::writeLoop, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// whatever is still in the ring is written before the process exits
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(EXIT_FLUSH_MILLIS), "log-flush"));
+
+		Metrics metrics = Metrics.forComponent("Log");
+		metrics.gauge("written", WRITTEN::sum);
+		metrics.gauge("dropped", DROPPED::sum);
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Lets through one call of sample() in every n, for call sites that can
+	 * fire at packet rate. Keep one per call site.
+	 */
+	public static final class Sampler {
+		private final int n;
+		private final AtomicLong calls = new AtomicLong();
+
+		private Sampler(int n) {
+			this.n = n;
+		}
+
+		// True for the first call and every n-th one after it
+		public boolean sample() {
+			return (calls.getAndIncrement() % n) == 0;
+		}
+
+		// Number of times sample() was called so far
+		public long getCalls() {
+			return calls.get();
+		}
+	}
+
+	public static Sampler sampler(int n) {
+		return new Sampler(n);
+	}
+
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(THRESHOLD) >= 0 && level != Level.OFF;
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message, null, null, 0, 0);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message, null, null, 0, 0);
+	}
+
+	public static void info(String message, Object first) {
+		log(Level.INFO, message, first, null, 0, 1);
+	}
+
+	public static void info(String message, Object first, Object second) {
+		log(Level.INFO, message, first, second, 0, 2);
+	}
+
+	public static void info(String message, long number) {
+		log(Level.INFO, message, null, null, number, 3);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message, null, null, 0, 0);
+	}
+
+	public static void warn(String message, Object first) {
+		log(Level.WARN, message, first, null, 0, 1);
+	}
+
+	public static void warn(String message, Object first, Object second) {
+		log(Level.WARN, message, first, second, 0, 2);
+	}
+
+	public static void warn(String message, long number) {
+		log(Level.WARN, message, null, null, number, 3);
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message, null, null, 0, 0);
+	}
+
+	public static void error(String message, Object first) {
+		log(Level.ERROR, message, first, null, 0, 1);
+	}
+
+	public static void error(String message, Object first, Object second) {
+		log(Level.ERROR, message, first, second, 0, 2);
+	}
+
+	/**
+	 * Writes a line of program output in order with the log events. Output
+	 * is never filtered or dropped: when the ring is full the caller waits.
+	 */
+	public static void output(String line) {
+		long sequence;
+		while ((sequence = claim()) < 0) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+		}
+		publish(sequence, line, null, null, 0, 0);
+	}
+
+	/**
+	 * Waits up to the given time for every event logged so far to be written.
+	 * Returns false if the time ran out first.
+	 */
+	public static boolean flush(long timeoutMillis) {
+		long target = TAIL.get();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		while (flushed < target) {
+			if (System.nanoTime() >= deadline) {
+				return false;
+			}
+			LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+		}
+		return true;
+	}
+
+	public static long getWritten() {
+		return WRITTEN.sum();
+	}
+
+	public static long getDropped() {
+		return DROPPED.sum();
+	}
+
+	private static void log(Level level, String message, Object first, Object second, long number, int arguments) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		long sequence = claim();
+		if (sequence < 0) {
+			DROPPED.increment();
+			return;
+		}
+		publish(sequence, message, first, second, number, arguments);
+	}
+
+	// Returns the claimed sequence, or -1 if the ring is full
+	private static long claim() {
+		while (true) {
+			long tail = TAIL.get();
+			if (tail - head >= CAPACITY) {
+				return -1;
+			}
+			if (TAIL.compareAndSet(tail, tail + 1)) {
+				return tail;
+			}
+		}
+	}
+
+	private static void publish(long sequence, String message, Object first, Object second, long number,
+			int arguments) {
+		Slot slot = SLOTS[(int) (sequence & MASK)];
+		slot.message = message;
+		slot.first = first;
+		slot.second = second;
+		slot.number = number;
+		slot.arguments = arguments;
+		slot.sequence = sequence; // publishes the fields above to the writer
+	}
+
+	private static void writeLoop() {
+		StringBuilder batch = new StringBuilder(MAX_BATCH_CHARS);
+
+		while (true) {
+			long start = head;
+			long next = start;
+			batch.setLength(0);
+
+			Slot slot;
+			while (batch.length() < MAX_BATCH_CHARS && (slot = SLOTS[(int) (next & MASK)]).sequence == next) {
+				// one bad event must not stop the only writer thread
+				int mark = batch.length();
+				try {
+					format(slot, batch);
+				} catch (Throwable t) {
+					batch.setLength(mark);
+					batch.append("Log event could not be formatted: ").append(t).append('\n');
+				}
+				slot.message = null;
+				slot.first = null;
+				slot.second = null;
+				next++;
+			}
+
+			if (next == start) {
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+				continue;
+			}
+
+			// the slots can be reused as soon as their contents are copied out
+			head = next;
+			OUT.print(batch);
+			OUT.flush();
+			flushed = next;
+			WRITTEN.add(next - start);
+		}
+	}
+
+	// Appends the message with each "{}" replaced by the next argument, and a newline
+	private static void format(Slot slot, StringBuilder out) {
+		String message = String.valueOf(slot.message);
+		int used = 0;
+		int from = 0;
+		int at;
+		while (used < argumentCount(slot) && (at = message.indexOf("{}", from)) >= 0) {
+			out.append(message, from, at);
+			if (slot.arguments == 3) {
+				out.append(slot.number);
+			} else {
+				out.append(used == 0 ? slot.first : slot.second);
+			}
+			used++;
+			from = at + 2;
+		}
+		out.append(message, from, message.length()).append('\n');
+	}
+
+	private static int argumentCount(Slot slot) {
+		return slot.arguments == 3 ? 1 : slot.arguments;
+	}
+
+	// One event; arguments is 0-2 objects, or 3 for a single long
+	private static final class Slot {
+		private volatile long sequence = -1;
+		private String message;
+		private Object first;
+		private Object second;
+		private long number;
+		private int arguments;
+	}
+}
@@ -0,0 +1,220 @@
+/**
+ * Metrics
+ *
+ * Counters, histograms and gauges for one component (a server, the resolver,
+ * an upstream), published as the MBean telecom:type=Metrics,name=<component>
+ * so they can be read with jconsole or any JMX client while it runs.
+ *
+ * Counters are LongAdders and histograms are LatencyHistograms, so recording
+ * never takes a lock. Callers look them up once and keep the reference, so
+ * the hot path is a striped add or an atomic increment and nothing else.
+ * Gauges are read from their owner only when the MBean is queried.
+ *
+ * With -Dmetrics.dump=<seconds>, startDump() also writes every component's
+ * values to the Log at that interval.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.*;
+
+public class Metrics implements DynamicMBean {
+
+	private static final String DOMAIN = "telecom";
+
+	// Percentiles published for every histogram, as attribute suffixes
+	private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+	private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+	// Every component created so far, by name
+	private static final Map<String, Metrics> COMPONENTS = new ConcurrentSkipListMap<String, Metrics>();
+
+	private final String component;
+	private final Map<String, LongAdder> counters = new ConcurrentSkipListMap<String, LongAdder>();
+	private final Map<String, LatencyHistogram> histograms = new ConcurrentSkipListMap<String, LatencyHistogram>();
+	private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<String, LongSupplier>();
+
+	private Metrics(String component) {
+		this.component = component;
+	}
+
+	/**
+	 * Returns the metrics of the named component, creating and publishing
+	 * them on first use.
+	 */
+	public static Metrics forComponent(String component) {
+		return COMPONENTS.computeIfAbsent(component, name -> {
+			Metrics metrics = new Metrics(name);
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName(name));
+			} catch (JMException e) {
+				Log.warn("Metrics for {} are not published over JMX: {}", name, e);
+			}
+			return metrics;
+		});
+	}
+
+	public LongAdder counter(String name) {
+		return counters.computeIfAbsent(name, key -> new LongAdder());
+	}
+
+	public LatencyHistogram histogram(String name) {
+		return histograms.computeIfAbsent(name, key -> new LatencyHistogram());
+	}
+
+	// Publishes a value owned elsewhere, read only when asked for
+	public void gauge(String name, LongSupplier value) {
+		gauges.put(name, value);
+	}
+
+	/**
+	 * Prints every component every metrics.dump seconds from a daemon thread,
+	 * if the property is set. Safe to call more than once.
+	 */
+	public static synchronized void startDump() {
+		int seconds = Integer.getInteger("metrics.dump", 0);
+		if (seconds <= 0 || dumping) {
+			return;
+		}
+		dumping = true;
+
+		Thread dumper = new Thread(() -> {
+			while (true) {
+				try {
+					Thread.sleep(seconds * 1000L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				String dump = dump();
+				if (!dump.isEmpty()) {
+					Log.output(dump.substring(0, dump.length() - 1));
+				}
+			}
+		}, "metrics-dump");
+		dumper.setDaemon(true);
+		dumper.start();
+	}
+
+	private static boolean dumping;
+
+	// One line per component, name=value pairs in name order
+	public static String dump() {
+		StringBuilder out = new StringBuilder();
+		for (Metrics metrics : COMPONENTS.values()) {
+			out.append("Metrics ").append(metrics.component).append(':');
+			for (String attribute : metrics.attributeNames()) {
+				out.append(' ').append(attribute).append('=').append(metrics.value(attribute));
+			}
+			out.append('\n');
+		}
+		return out.toString();
+	}
+
+	private List<String> attributeNames() {
+		List<String> names = new ArrayList<String>();
+		names.addAll(counters.keySet());
+		names.addAll(gauges.keySet());
+		for (String histogram : histograms.keySet()) {
+			names.add(histogram + ".count");
+			names.add(histogram + ".mean");
+			for (String percentile : PERCENTILE_NAMES) {
+				names.add(histogram + "." + percentile);
+			}
+			names.add(histogram + ".max");
+		}
+		return names;
+	}
+
+	// Current value of an attribute, or null if there is no such attribute
+	private Long value(String attribute) {
+		LongAdder counter = counters.get(attribute);
+		if (counter != null) {
+			return counter.sum();
+		}
+		LongSupplier gauge = gauges.get(attribute);
+		if (gauge != null) {
+			return gauge.getAsLong();
+		}
+
+		int dot = attribute.lastIndexOf('.');
+		LatencyHistogram histogram = dot < 0 ? null : histograms.get(attribute.substring(0, dot));
+		if (histogram == null) {
+			return null;
+		}
+		String statistic = attribute.substring(dot + 1);
+		switch (statistic) {
+		case "count":
+			return histogram.getCount();
+		case "mean":
+			return Math.round(histogram.getMean());
+		case "max":
+			return histogram.getMax();
+		default:
+			for (int i = 0; i < PERCENTILE_NAMES.length; i++) {
+				if (PERCENTILE_NAMES[i].equals(statistic)) {
+					return histogram.getPercentile(PERCENTILES[i]);
+				}
+			}
+			return null;
+		}
+	}
+
+	private static ObjectName objectName(String component) throws MalformedObjectNameException {
+		boolean plain = component.chars().noneMatch(c -> ",=:*?\"\\\n".indexOf(c) >= 0);
+		return new ObjectName(DOMAIN + ":type=Metrics,name=" + (plain ? component : ObjectName.quote(component)));
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Long value = value(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			Long value = value(attribute);
+			if (value != null) {
+				list.add(new Attribute(attribute, value));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	// Rebuilt on every call, since metrics can be added after registration
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<String> names = attributeNames();
+		MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[names.size()];
+		for (int i = 0; i < attributes.length; i++) {
+			attributes[i] = new MBeanAttributeInfo(names.get(i), Long.class.getName(), names.get(i), true, false,
+					false);
+		}
+		return new MBeanInfo(Metrics.class.getName(), "Metrics of " + component, attributes, null, null, null);
+	}
+}
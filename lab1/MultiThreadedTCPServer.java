@@ -3,35 +3,236 @@
  * 
  * Processes each incoming connection in a parallel thread using Java's Runnable class.
  * 
+ * How connections are run is selectable with -m:
+ *   thread   a new platform thread per connection (the default, unbounded)
+ *   pool     a fixed pool of -t threads with a queue of -q connections; once
+ *            both are full, -r close drops new connections and -r caller
+ *            handles them on the accepting thread, which slows down accepting
+ *   virtual  a virtual thread per connection (Java 21+, otherwise falls back
+ *            to thread)
+ * 
+ * Each connection stays open for any number of lines, answered in order, until
+ * the client closes it or stays idle for the -i timeout. Clients that open
+ * with the FrameProtocol hello exchange length-prefixed frames instead.
+ * 
+ * Admission is controlled by a ConnectionManager: at most -c connections are
+ * open at once and further ones are closed as soon as they are accepted, while
+ * -b sets how many the kernel may queue before they are accepted. On shutdown
+ * (Ctrl-C) the server stops accepting, lets open connections finish for up to
+ * DRAIN_MILLIS, and prints its connection counters, which are also printed
+ * every few seconds while they change.
+ * 
+ * The connection counters, request and byte counts, errors, request sizes and
+ * per-request service times are also kept in Metrics (component
+ * MultiThreadedTCPServer).
+ * 
  * @author michaelrabbat, adapted from code provided by Jun Ye Yu
  */
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 public class MultiThreadedTCPServer {
+
+	private static final String USAGE = "Usage: java MultiThreadedTCPServer [-p port] [-m thread|pool|virtual] "
+			+ "[-t pool-threads] [-q queue-size] [-r close|caller] [-c max-connections] [-b backlog] "
+			+ "[-i idle-timeout-seconds]";
+
+	// How long open connections get to finish on shutdown
+	private static final long DRAIN_MILLIS = 5000;
+
+	// How often the connection counters are printed
+	private static final long REPORT_MILLIS = 5000;
+
+	// Shared with ServerThread, which records each request
+	static final Metrics METRICS = Metrics.forComponent("MultiThreadedTCPServer");
+
+	// Rejections can come at accept rate under overload; only some are logged
+	private static final Log.Sampler FULL_LOG = Log.sampler(100);
+
 	public static void main(String[] args) {
+		int port = 6789;
+		String mode = "thread";
+		int poolThreads = 64;
+		int queueSize = 256;
+		String rejection = "close";
+		int maxConnections = 1024;
+		int backlog = 128;
+		int idleTimeout = 10;
+
+		for (int i = 0; i < args.length; i++) {
+			if (i + 1 >= args.length) {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+			switch (args[i]) {
+			case "-p":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "-m":
+				mode = args[++i];
+				break;
+			case "-t":
+				poolThreads = Integer.parseInt(args[++i]);
+				break;
+			case "-q":
+				queueSize = Integer.parseInt(args[++i]);
+				break;
+			case "-r":
+				rejection = args[++i];
+				break;
+			case "-c":
+				maxConnections = Integer.parseInt(args[++i]);
+				break;
+			case "-b":
+				backlog = Integer.parseInt(args[++i]);
+				break;
+			case "-i":
+				idleTimeout = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+		}
+
 		try {
-			ServerSocket welcomeSocket = new ServerSocket(6789);
+			Executor executor = createExecutor(mode, poolThreads, queueSize, rejection);
+			ConnectionManager manager = new ConnectionManager(maxConnections, idleTimeout * 1000);
+			ServerSocket welcomeSocket = new ServerSocket(port, backlog);
+			
+			METRICS.gauge("activeConnections", manager::getActive);
+			METRICS.gauge("acceptedConnections", manager::getAccepted);
+			METRICS.gauge("rejectedConnections", manager::getRejected);
+			METRICS.gauge("timedOutConnections", manager::getTimedOut);
+			METRICS.gauge("completedConnections", manager::getCompleted);
+			Metrics.startDump();
+			
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> shutdown(welcomeSocket, manager, executor)));
+			startReporter(manager);
 	
 			// Continuous loop
 			while (true)
 			{
-				System.out.println("waiting for client");
+				Log.info("waiting for client");
 				
 				// Listen to client request
 				Socket connectionSocket = welcomeSocket.accept();
 				
-				System.out.println("connection established, creating new thread");
+				// Turn the client away straight away if the server is full
+				if (!manager.admit(connectionSocket)) {
+					if (FULL_LOG.sample()) {
+						Log.warn("server full, dropping connection ({} so far)", FULL_LOG.getCalls());
+					}
+					continue;
+				}
 				
-				// Create a thread to handle the request
-				ServerThread handler = new ServerThread(connectionSocket);
-				new Thread(handler).start();
+				Log.info("connection established, handing it to the executor");
+				
+				// Run the request on the selected executor
+				ServerThread handler = new ServerThread(connectionSocket, manager);
+				executor.execute(handler);
 			}
 		}
 		catch (Exception e)
 		{
-			System.out.println(e.getMessage());
+			Log.error("Server stopped: {}", e);
+		}
+	}
+
+	// Stops accepting, lets open connections finish and prints the counters
+	private static void shutdown(ServerSocket welcomeSocket, ConnectionManager manager, Executor executor) {
+		try {
+			welcomeSocket.close();
+		} catch (IOException e) {
+			// exiting anyway
+		}
+		try {
+			int forced = manager.drain(DRAIN_MILLIS);
+			if (forced > 0) {
+				Log.warn("{} connections did not finish in time and were closed", forced);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+		Log.info("{}", manager);
+		Log.flush(DRAIN_MILLIS);
+	}
+
+	// Prints the connection counters every REPORT_MILLIS while they change
+	private static void startReporter(ConnectionManager manager) {
+		Thread reporter = new Thread(() -> {
+			String last = manager.toString();
+			while (true) {
+				try {
+					Thread.sleep(REPORT_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				String current = manager.toString();
+				if (!current.equals(last)) {
+					Log.info(current);
+					last = current;
+				}
+			}
+		}, "connection-reporter");
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+
+	/**
+	 * Builds the executor for the given mode. Pool threads are created up
+	 * front so that a burst does not pay for thread creation.
+	 */
+	static Executor createExecutor(String mode, int poolThreads, int queueSize, String rejection) {
+		switch (mode) {
+		case "thread":
+			return task -> new Thread(task).start();
+
+		case "pool":
+			BlockingQueue<Runnable> queue = queueSize > 0 ? new ArrayBlockingQueue<Runnable>(queueSize)
+					: new SynchronousQueue<Runnable>();
+
+			RejectedExecutionHandler handler;
+			if (rejection.equals("close")) {
+				handler = (task, pool) -> ((ServerThread) task).reject();
+			} else if (rejection.equals("caller")) {
+				handler = new ThreadPoolExecutor.CallerRunsPolicy();
+			} else {
+				throw new IllegalArgumentException("Unknown rejection policy " + rejection);
+			}
+
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(poolThreads, poolThreads, 0, TimeUnit.MILLISECONDS, queue,
+					handler);
+			pool.prestartAllCoreThreads();
+			return pool;
+
+		case "virtual":
+			// looked up reflectively so that the server still builds and runs before Java 21
+			try {
+				return (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			} catch (ReflectiveOperationException | UnsupportedOperationException e) {
+				Log.warn("Virtual threads are not available on Java {}, using a thread per connection",
+						System.getProperty("java.version"));
+				return createExecutor("thread", poolThreads, queueSize, rejection);
+			}
+
+		default:
+			throw new IllegalArgumentException("Unknown execution mode " + mode);
 		}
 	}
 }
@@ -46,41 +247,108 @@ public class MultiThreadedTCPServer {
  */
 class ServerThread implements Runnable
 {
+	// Applied in place to the client's sentence before it is sent back
+	private static final ByteTransform TRANSFORM = ByteTransform.UPPER_CASE;
+
+	// Replies are collected in a buffer of this size before being written
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+	// Frame headers are read through a buffer of this size; payloads this size or larger bypass it
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
+	// Looked up once so that recording is only an add per request
+	private static final LongAdder REQUESTS = MultiThreadedTCPServer.METRICS.counter("requests");
+	private static final LongAdder BYTES_IN = MultiThreadedTCPServer.METRICS.counter("bytesIn");
+	private static final LongAdder BYTES_OUT = MultiThreadedTCPServer.METRICS.counter("bytesOut");
+	private static final LongAdder ERRORS = MultiThreadedTCPServer.METRICS.counter("errors");
+	private static final LatencyHistogram REQUEST_BYTES = MultiThreadedTCPServer.METRICS.histogram("requestBytes");
+	private static final LatencyHistogram SERVICE_NANOS = MultiThreadedTCPServer.METRICS.histogram("serviceNanos");
+
+	// Rejections can come at accept rate under overload; only some are logged
+	private static final Log.Sampler BUSY_LOG = Log.sampler(100);
+
 	// Socket associated with this thread
 	private Socket connectionSocket;
 	
+	// Admitted the socket, and takes it back when we are done
+	private ConnectionManager manager;
+	
 	// Constructor, assign a socket to this thread
-	public ServerThread(Socket connectionSocket) {
+	public ServerThread(Socket connectionSocket, ConnectionManager manager) {
 		this.connectionSocket = connectionSocket;
+		this.manager = manager;
+	}
+	
+	// Records a request served over FrameProtocol, which echoes as many bytes as it received
+	private static void served(int length, long nanos) {
+		REQUESTS.increment();
+		BYTES_IN.add(length);
+		BYTES_OUT.add(length);
+		REQUEST_BYTES.record(length);
+		SERVICE_NANOS.record(nanos);
+	}
+	
+	// Called instead of run() when the server is too busy to take the connection
+	public void reject() {
+		if (BUSY_LOG.sample()) {
+			Log.warn("server busy, dropping connection ({} so far)", BUSY_LOG.getCalls());
+		}
+		manager.reject(connectionSocket);
 	}
 	
 	// The thread will execute this method then terminate
 	@Override
 	public void run() {
-		String question; // Received from client
-		String reply; // Reply to client
+		ByteBuffer question; // Received from client, and transformed into the reply
 		
 		try {
 			// Establish connection with client
-			// Open a stream to read from client
-			BufferedReader inFromClient = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
+			// Open a stream to read from client; its first byte says which protocol it speaks
+			PushbackInputStream rawFromClient = new PushbackInputStream(connectionSocket.getInputStream());
 			// Open a stream to write to client
-			DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
+			OutputStream outToClient = new BufferedOutputStream(connectionSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 	
-			// Process client request 
-			// Read client's question
-			question = inFromClient.readLine();
-			
-			System.out.println("from client: " + question);
-			
-			// Convert the sentence to upper case
-			reply = question.toUpperCase();
+			if (FrameProtocol.accept(rawFromClient, outToClient)) {
+				FrameProtocol.serve(new DataInputStream(new BufferedInputStream(rawFromClient, INPUT_BUFFER_SIZE)),
+						new DataOutputStream(outToClient), ServerThread::served);
+				return;
+			}
+			LineReader inFromClient = new LineReader(rawFromClient);
+	
+			// Process client requests until the client closes its side
+			// Read client's question, newline included; pipelined ones are answered in order
+			while ((question = inFromClient.readLine()) != null) {
+				long receivedAt = System.nanoTime();
+				int length = question.remaining();
+				REQUESTS.increment();
+				BYTES_IN.add(length);
+				REQUEST_BYTES.record(length);
+				
+				// Convert the sentence to upper case, in place
+				TRANSFORM.apply(question);
+				
+				// Send the sentence back to client
+				outToClient.write(question.array(), question.position(), question.remaining());
+				BYTES_OUT.add(length);
 				
-			// Send the sentence back to client
-			outToClient.writeBytes(reply + '\n'); 
+				// Flush only when the next read could block, batching pipelined replies
+				if (!inFromClient.hasBufferedLine()) {
+					outToClient.flush();
+				}
+				SERVICE_NANOS.record(System.nanoTime() - receivedAt);
+			}
+		}
+		catch (SocketTimeoutException e) {
+			// idle client, close below
+			manager.recordTimeout();
 		}
 		catch (Exception e) {
-			System.out.println(e.getMessage());
+			ERRORS.increment();
+			Log.warn("Connection failed: {}", e);
+		}
+		finally {
+			// on EOF, idle timeout or error; pooled threads would otherwise leak the socket
+			manager.release(connectionSocket);
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,330 @@
+/**
+ * ReactorTCPServer
+ *
+ * Uppercase echo server built on non-blocking channels instead of a thread
+ * per connection. The main thread accepts connections and deals them out
+ * round-robin to a fixed number of event loops (one per core by default),
+ * each driving its own Selector. Every '\n'-terminated line a client sends
+ * is transformed in place and echoed back, like TCPServer; clients may send
+ * as many lines as they like on one connection.
+ *
+ * Reads go into one buffer per event loop, and only a partial line is kept
+ * per connection, so an idle connection costs little more than its socket.
+ * The replies to all complete lines in one read are gathered into a single
+ * run of the read buffer and written with one call when the socket can take
+ * them; whatever it cannot take is queued on the connection and flushed on
+ * OP_WRITE. A connection with more than MAX_PENDING_OUTPUT bytes queued is
+ * not read from until the client catches up.
+ *
+ * @author Donya Hojabr, Dylan Havelock
+ */
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public class ReactorTCPServer {
+
+	private static final String USAGE = "Usage: java ReactorTCPServer [-p port] [-l event-loops]";
+
+	// Applied in place to every line before it is sent back
+	private static final ByteTransform TRANSFORM = ByteTransform.UPPER_CASE;
+
+	// Pending connections the kernel may queue while the acceptor catches up
+	private static final int ACCEPT_BACKLOG = 4096;
+
+	// Size of each event loop's read buffer
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	// Stop reading from a client once this much output is waiting for it
+	private static final int MAX_PENDING_OUTPUT = 256 * 1024;
+
+	// Connections sending longer lines are closed
+	private static final int MAX_LINE_LENGTH = 1 << 20;
+
+	public static void main(String[] args) throws Exception
+	{
+		int port = 6789;
+		int loops = Runtime.getRuntime().availableProcessors();
+
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p") && i + 1 < args.length) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-l") && i + 1 < args.length) {
+				loops = Integer.parseInt(args[++i]);
+			} else {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+		}
+
+		// Start the event loops
+		EventLoop[] eventLoops = new EventLoop[loops];
+		for (int i = 0; i < loops; i++) {
+			eventLoops[i] = new EventLoop();
+			new Thread(eventLoops[i], "reactor-" + i).start();
+		}
+
+		// Open a blocking ServerSocketChannel on the specified port
+		ServerSocketChannel welcomeChannel = ServerSocketChannel.open();
+		welcomeChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		Log.info("ReactorTCPServer listening on port {} with {} event loops", port, loops);
+
+		// Accept connections and deal them out to the event loops
+		for (int next = 0; ; next = (next + 1) % loops) {
+			SocketChannel connectionChannel = welcomeChannel.accept();
+			try {
+				connectionChannel.configureBlocking(false);
+				connectionChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				eventLoops[next].register(connectionChannel);
+			} catch (IOException e) {
+				connectionChannel.close();
+			}
+		}
+	}
+
+	/**
+	 * Per-connection state: the unfinished line (if any) and the output the
+	 * socket has not taken yet (if any). Both are only allocated when needed.
+	 */
+	private static class Connection {
+		private final SocketChannel channel;
+		private SelectionKey key;
+		private ByteBuffer partial; // in write mode
+		private ByteBuffer output; // in write mode
+		private boolean inputClosed;
+
+		private Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		private int pendingOutput() {
+			return output == null ? 0 : output.position();
+		}
+	}
+
+	/**
+	 * One selector thread serving many connections.
+	 */
+	private static class EventLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<SocketChannel> registrations = new ConcurrentLinkedQueue<SocketChannel>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+
+		private EventLoop() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		// Called from the acceptor thread
+		private void register(SocketChannel channel) {
+			registrations.add(channel);
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					selector.select();
+
+					SocketChannel channel;
+					while ((channel = registrations.poll()) != null) {
+						Connection connection = new Connection(channel);
+						connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+					}
+
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Connection connection = (Connection) key.attachment();
+
+						try {
+							if (key.isValid() && key.isWritable()) {
+								flush(connection);
+							}
+							if (key.isValid() && key.isReadable()) {
+								read(connection);
+							}
+						} catch (IOException e) {
+							close(connection);
+						}
+					}
+				}
+			} catch (IOException e) {
+				Log.error("Event loop {} stopped: {}", Thread.currentThread().getName(), e);
+			}
+		}
+
+		private void read(Connection connection) throws IOException {
+			readBuffer.clear();
+			int n = connection.channel.read(readBuffer);
+
+			if (n < 0) {
+				// a last line without a newline still gets its reply
+				connection.inputClosed = true;
+				if (connection.partial != null && connection.partial.position() > 0) {
+					ByteBuffer last = append(connection, ByteBuffer.wrap(new byte[] { '\n' }));
+					processLines(connection, last);
+				}
+				connection.partial = null;
+				finishIfDone(connection);
+				return;
+			}
+			readBuffer.flip();
+
+			if (connection.partial != null) {
+				// complete the unfinished line first, then carry on from the buffer it now holds
+				processLines(connection, append(connection, readBuffer));
+			} else {
+				processLines(connection, readBuffer);
+			}
+		}
+
+		/**
+		 * Echoes every complete line between the buffer's position and limit,
+		 * then keeps whatever follows the last newline as the partial line.
+		 * Replies are moved down next to each other as needed, so they all go
+		 * out in one write.
+		 */
+		private void processLines(Connection connection, ByteBuffer data) throws IOException {
+			int replyStart = data.position();
+			int replyEnd = replyStart;
+			int lineStart = replyStart;
+			int limit = data.limit();
+
+			for (int i = lineStart; i < limit; i++) {
+				if (data.get(i) != '\n') {
+					continue;
+				}
+
+				// "\r\n" is answered with "\n", as the blocking servers do
+				int lineEnd = i + 1;
+				if (lineEnd - lineStart >= 2 && data.get(i - 1) == '\r') {
+					data.put(i - 1, (byte) '\n');
+					lineEnd--;
+				}
+
+				// close the gap a shortened terminator left behind
+				if (lineStart != replyEnd) {
+					System.arraycopy(data.array(), lineStart, data.array(), replyEnd, lineEnd - lineStart);
+				}
+				replyEnd += lineEnd - lineStart;
+
+				lineStart = i + 1;
+			}
+
+			if (replyEnd > replyStart) {
+				data.limit(replyEnd).position(replyStart);
+				TRANSFORM.apply(data);
+				write(connection, data);
+			}
+
+			data.limit(limit).position(lineStart);
+			if (data == connection.partial) {
+				data.compact(); // back to write mode, holding only the rest
+			} else if (data.hasRemaining()) {
+				connection.partial = ensureCapacity(connection.partial, data.remaining());
+				connection.partial.put(data);
+			}
+
+			if (connection.partial != null && connection.partial.position() == 0) {
+				connection.partial = null;
+			} else if (connection.partial != null && connection.partial.position() > MAX_LINE_LENGTH) {
+				throw new IOException("Line too long");
+			}
+		}
+
+		/**
+		 * Adds data to the connection's partial line and returns the partial
+		 * line flipped for reading.
+		 */
+		private ByteBuffer append(Connection connection, ByteBuffer data) {
+			connection.partial = ensureCapacity(connection.partial, data.remaining());
+			connection.partial.put(data);
+			connection.partial.flip();
+			return connection.partial;
+		}
+
+		// Writes as much as the socket takes now and queues the rest
+		private void write(Connection connection, ByteBuffer reply) throws IOException {
+			if (connection.pendingOutput() == 0) {
+				connection.channel.write(reply);
+				if (!reply.hasRemaining()) {
+					return;
+				}
+			}
+
+			connection.output = ensureCapacity(connection.output, reply.remaining());
+			connection.output.put(reply);
+
+			int ops = SelectionKey.OP_WRITE;
+			if (connection.pendingOutput() < MAX_PENDING_OUTPUT && !connection.inputClosed) {
+				ops |= SelectionKey.OP_READ;
+			}
+			connection.key.interestOps(ops);
+		}
+
+		private void flush(Connection connection) throws IOException {
+			ByteBuffer output = connection.output;
+			if (output != null) {
+				output.flip();
+				connection.channel.write(output);
+				output.compact();
+				if (output.position() == 0) {
+					connection.output = null;
+				}
+			}
+
+			if (connection.pendingOutput() == 0) {
+				if (finishIfDone(connection)) {
+					return;
+				}
+				connection.key.interestOps(SelectionKey.OP_READ);
+			} else if (connection.pendingOutput() < MAX_PENDING_OUTPUT && !connection.inputClosed) {
+				connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		// Closes the connection once the client has stopped sending and every reply is out
+		private boolean finishIfDone(Connection connection) {
+			if (connection.inputClosed && connection.pendingOutput() == 0) {
+				close(connection);
+				return true;
+			}
+			if (connection.inputClosed) {
+				connection.key.interestOps(SelectionKey.OP_WRITE);
+			}
+			return false;
+		}
+
+		private void close(Connection connection) {
+			connection.key.cancel();
+			try {
+				connection.channel.close();
+			} catch (IOException e) {
+				// nothing left to do with it
+			}
+		}
+
+		// Returns a buffer in write mode with room for extra more bytes
+		private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+			if (buffer == null) {
+				return ByteBuffer.allocate(Math.max(256, extra));
+			}
+			if (buffer.remaining() >= extra) {
+				return buffer;
+			}
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + extra));
+			buffer.flip();
+			grown.put(buffer);
+			return grown;
+		}
+	}
+}
@@ -4,35 +4,83 @@
  * Adapted from the example given in Section 2.7 of Kurose and Ross, Computer
  * Networking: A Top-Down Approach (5th edition)
  * 
+ * Usage: java TCPClient [-s | -f] [-h host] [-p port]
+ * 
+ * By default one message typed by the user is sent and its reply printed.
+ * With -s every line read from standard input is sent over the same
+ * connection without waiting for replies, which are printed as they arrive,
+ * until the input ends and the server has answered everything. -f does the
+ * same over FrameProtocol: each line is sent as one frame with its own request
+ * id, and replies are matched back to their requests by id.
+ * 
+ * Text is sent and received as UTF-8 and writes are buffered, so a message
+ * leaves in one write rather than one byte at a time.
+ * 
  * @author michaelrabbat
  *
  */
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class TCPClient {
+	private static final String USAGE = "Usage: java TCPClient [-s | -f] [-h host] [-p port]";
+
 	public static void main(String argv[]) throws Exception
 	{
 		// Create two string variables to hold the info we'll send and receive from the server
 		String sentence;
 		String modifiedSentence;
 		
+		String host = "localhost";
+		int port = 6789;
+		boolean stream = false;
+		boolean frames = false;
+		
+		for (int i = 0; i < argv.length; i++) {
+			if (argv[i].equals("-s")) {
+				stream = true;
+			} else if (argv[i].equals("-f")) {
+				frames = true;
+			} else if (argv[i].equals("-h") && i + 1 < argv.length) {
+				host = argv[++i];
+			} else if (argv[i].equals("-p") && i + 1 < argv.length) {
+				port = Integer.parseInt(argv[++i]);
+			} else {
+				System.out.println(USAGE);
+				System.exit(1);
+			}
+		}
+		
 		// Open a reader to input from the command line
-		BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in));
+		BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+		
+		// Open a TCP socket to the server, running on port 6789 "localhost" (i.e., this machine) by default
+		Socket clientSocket = new Socket(host, port);
 		
-		// Open a TCP socket to the server, running on port 6789 "localhost" (i.e., this machine)  
-		Socket clientSocket = new Socket("localhost", 6789);
+		if (stream) {
+			streamLines(clientSocket, inFromUser);
+			return;
+		}
+		if (frames) {
+			streamFrames(clientSocket, inFromUser);
+			return;
+		}
 		
 		// Open readers to send/receive from server
-		DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
-		BufferedReader inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+		Writer outToServer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
+		BufferedReader inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
 		
 		// Read input from the user:
 		System.out.println("Type a message and hit enter.");
 		sentence = inFromUser.readLine();
 		
-		// Send the message to the server
-		outToServer.writeBytes(sentence + '\n');
+		// Send the message to the server, newline included, in one write
+		outToServer.write(sentence);
+		outToServer.write('\n');
+		outToServer.flush();
 		
 		// Read the response from the server
 		modifiedSentence = inFromServer.readLine();
@@ -41,4 +89,106 @@ public class TCPClient {
 		// Close the socket
 		//clientSocket.close();
 	}
+	
+	/**
+	 * Sends every input line over the one socket from a separate thread, so
+	 * requests are pipelined, while this thread prints the replies in order.
+	 */
+	private static void streamLines(Socket clientSocket, BufferedReader inFromUser) throws Exception
+	{
+		BufferedReader inFromServer = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
+		Writer outToServer = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream(), StandardCharsets.UTF_8));
+		
+		Thread sender = new Thread(() -> {
+			try {
+				String line;
+				while ((line = inFromUser.readLine()) != null) {
+					outToServer.write(line);
+					outToServer.write('\n');
+					
+					// push out what we have whenever the user has nothing more ready
+					if (!inFromUser.ready()) {
+						outToServer.flush();
+					}
+				}
+				outToServer.flush();
+				
+				// Tell the server we are done; it closes once every reply is sent
+				clientSocket.shutdownOutput();
+			} catch (IOException e) {
+				System.out.println("Send failed: " + e.getMessage());
+			}
+		}, "tcp-client-sender");
+		sender.start();
+		
+		String modifiedSentence;
+		while ((modifiedSentence = inFromServer.readLine()) != null) {
+			System.out.println("From Server: " + modifiedSentence);
+		}
+		
+		sender.join();
+		clientSocket.close();
+	}
+	
+	/**
+	 * Like streamLines(), but over FrameProtocol. Each line goes out as an
+	 * upper-case request with the next request id and is remembered until the
+	 * reply carrying that id comes back, whatever order replies arrive in.
+	 */
+	private static void streamFrames(Socket clientSocket, BufferedReader inFromUser) throws Exception
+	{
+		DataInputStream inFromServer = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
+		DataOutputStream outToServer = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+		FrameProtocol.connect(inFromServer, outToServer);
+		
+		// Requests sent and not yet answered, by request id
+		Map<Integer, String> pending = new ConcurrentHashMap<Integer, String>();
+		
+		Thread sender = new Thread(() -> {
+			try {
+				String line;
+				int requestId = 0;
+				while ((line = inFromUser.readLine()) != null) {
+					byte[] payload = line.getBytes(StandardCharsets.UTF_8);
+					pending.put(++requestId, line);
+					FrameProtocol.writeHeader(outToServer, payload.length, requestId, FrameProtocol.OP_UPPER_CASE,
+							FrameProtocol.STATUS_OK);
+					outToServer.write(payload);
+					
+					if (!inFromUser.ready()) {
+						outToServer.flush();
+					}
+				}
+				outToServer.flush();
+				clientSocket.shutdownOutput();
+			} catch (IOException e) {
+				System.out.println("Send failed: " + e.getMessage());
+			}
+		}, "tcp-client-sender");
+		sender.start();
+		
+		FrameProtocol.Header header = new FrameProtocol.Header();
+		byte[] payload = new byte[0];
+		while (FrameProtocol.readHeader(inFromServer, header)) {
+			if (payload.length < header.length) {
+				payload = new byte[header.length];
+			}
+			inFromServer.readFully(payload, 0, header.length);
+			
+			String request = pending.remove(header.requestId);
+			if (request == null) {
+				System.out.println("Reply to unknown request " + header.requestId);
+			} else if (header.status != FrameProtocol.STATUS_OK) {
+				System.out.println("Request " + header.requestId + " failed with status " + header.status);
+			} else {
+				System.out.println("From Server: " + new String(payload, 0, header.length, StandardCharsets.UTF_8));
+			}
+		}
+		
+		sender.join();
+		if (!pending.isEmpty()) {
+			System.out.println(pending.size() + " requests were not answered");
+		}
+		clientSocket.close();
+	}
 }
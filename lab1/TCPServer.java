@@ -4,18 +4,44 @@
  * Adapted from the example given in Section 2.7 of Kurose and Ross, Computer
  * Networking: A Top-Down Approach (5th edition)
  * 
+ * The sentence is read as bytes and transformed in place by a ByteTransform
+ * (upper case), then written back from the same buffer. Replies are buffered
+ * and only flushed once no further request is waiting, so a burst of pipelined
+ * lines goes out in as few writes as the buffer allows.
+ * 
+ * A client that opens with the FrameProtocol hello is served length-prefixed
+ * frames instead of lines for the rest of the connection.
+ * 
+ * Connections are persistent: the client may send any number of lines, which
+ * are answered in order, and the connection is closed on EOF or once the
+ * client has been idle for IDLE_TIMEOUT_MILLIS. Clients are still served one
+ * at a time; see MultiThreadedTCPServer and ReactorTCPServer for concurrency.
+ * 
  * @author michaelrabbat
  *
  */
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 
 public class TCPServer {
+
+	// Applied in place to every sentence before it is sent back
+	private static final ByteTransform TRANSFORM = ByteTransform.UPPER_CASE;
+
+	// Connections with no request for this long are closed
+	private static final int IDLE_TIMEOUT_MILLIS = 10000;
+
+	// Replies are collected in a buffer of this size before being written
+	private static final int OUTPUT_BUFFER_SIZE = 16 * 1024;
+
+	// Frame headers are read through a buffer of this size; payloads this size or larger bypass it
+	private static final int INPUT_BUFFER_SIZE = 16 * 1024;
+
 	public static void main(String argv[]) throws Exception
 	{
-		// Create two string variables, one for 
-		String clientSentence;
-		String capitalizedSentence;
+		// The sentence received from the client, which is also the reply
+		ByteBuffer clientSentence;
 		
 		// Open a ServerSocket on the specified port
 		ServerSocket welcomeSocket = new ServerSocket(6789);
@@ -27,26 +53,47 @@ public class TCPServer {
 			Socket connectionSocket = welcomeSocket.accept();
 
 			// If we get here, then we've received a connection
-			System.out.println("Connection received...");
-			
-			// Reader to process incoming data stream from client
-			BufferedReader inFromClient = new BufferedReader(new InputStreamReader(connectionSocket.getInputStream()));
-			
-			// Writer to send data back to client
-			DataOutputStream outToClient = new DataOutputStream(connectionSocket.getOutputStream());
-			
-			// Read what the client sent
-			clientSentence = inFromClient.readLine();
-			System.out.println("From client: " + clientSentence);
-			
-			Thread.sleep(500);
-			
-			// Convert to all caps and send back to the client
-			capitalizedSentence = clientSentence.toUpperCase() + '\n';
-			outToClient.writeBytes(capitalizedSentence);
+			Log.info("Connection received...");
 			
-			// Do nothing else here... leave it to the client to close the socket.
-			// Could also close it here.
+			try {
+				// Give up on the client if it goes quiet
+				connectionSocket.setSoTimeout(IDLE_TIMEOUT_MILLIS);
+				
+				// The first byte tells a framing client from a line client
+				PushbackInputStream rawFromClient = new PushbackInputStream(connectionSocket.getInputStream());
+				
+				// Stream to send data back to client
+				OutputStream outToClient = new BufferedOutputStream(connectionSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+				
+				if (FrameProtocol.accept(rawFromClient, outToClient)) {
+					FrameProtocol.serve(new DataInputStream(new BufferedInputStream(rawFromClient, INPUT_BUFFER_SIZE)),
+							new DataOutputStream(outToClient), null);
+					continue;
+				}
+				
+				// Reader to process incoming data stream from client
+				LineReader inFromClient = new LineReader(rawFromClient);
+				
+				// Read what the client sent, newline included, until it closes its side.
+				// Pipelined lines are already waiting in the reader and are answered in order.
+				while ((clientSentence = inFromClient.readLine()) != null) {
+					// Convert to all caps in place and send back to the client
+					TRANSFORM.apply(clientSentence);
+					outToClient.write(clientSentence.array(), clientSentence.position(), clientSentence.remaining());
+					
+					// Send what we have before waiting for the client again
+					if (!inFromClient.hasBufferedLine()) {
+						outToClient.flush();
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				Log.info("Connection idle, closing");
+			} catch (IOException e) {
+				Log.warn("Connection failed: {}", e);
+			} finally {
+				// Done with this client
+				connectionSocket.close();
+			}
 		}
 	}
 }
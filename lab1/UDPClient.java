@@ -9,13 +9,14 @@
  */
 import java.io.*;
 import java.net.*;
+import java.nio.charset.StandardCharsets;
 
 public class UDPClient {
 
 	public static void main(String args[]) throws Exception
 	{
 		// Open a reader to input from the command line
-		BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in));
+		BufferedReader inFromUser = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
 
 		// Create a UDP socket
 		// (Note, when no port number is specified, the OS will assign an arbitrary one)
@@ -33,8 +34,8 @@ public class UDPClient {
 		System.out.println("Type a message and hit enter.");
 		String sentence = inFromUser.readLine();
 
-		// Convert the sentence from a String to an array of bytes
-		sendData = sentence.getBytes();
+		// Convert the sentence from a String to an array of UTF-8 bytes
+		sendData = sentence.getBytes(StandardCharsets.UTF_8);
 		
 		// Create a UDP packet to be sent to the server
 		// This involves specifying the sender's address and port number
@@ -49,8 +50,8 @@ public class UDPClient {
 		// Receive data from the server
 		clientSocket.receive(receivePacket);
 		
-		// Extract the sentence (as a String object) from the received byte stream
-		String modifiedSentence = new String(receivePacket.getData());
+		// Extract the sentence (as a String object) from the bytes actually received
+		String modifiedSentence = new String(receivePacket.getData(), 0, receivePacket.getLength(), StandardCharsets.UTF_8);
 		System.out.println("From Server: " + modifiedSentence);
 		
 		// Close the socket
@@ -4,52 +4,264 @@
  * Adapted from the example given in Section 2.8 of Kurose and Ross, Computer
  * Networking: A Top-Down Approach (5th edition)
  * 
+ * Each message is transformed in place by a ByteTransform (upper case) and
+ * exactly the bytes received are sent back.
+ * 
+ * With -w N the server runs N receive workers instead, each with its own
+ * socket bound to the same port through SO_REUSEPORT (or sharing one channel
+ * where that option is unavailable) and its own direct buffer, reused for
+ * every datagram. Throughput is reported once a second instead of logging
+ * each packet.
+ * 
+ * With -z zonefile (repeatable) the server is an authoritative DNS responder
+ * instead: the workers answer queries for the zones from a DnsAuthority,
+ * whose responses are encoded when the zones are loaded, and queries/s are
+ * reported. It runs one worker unless -w asks for more.
+ * 
+ * With -a address the server binds to that address only, so that several
+ * stand-in authorities can share a port on different loopback addresses.
+ * 
+ * Packet and byte counts, errors, packet sizes and the time from receiving a
+ * packet to sending its reply are kept in Metrics (component UDPServer).
+ * Messages go through Log, so the console never holds up a worker.
+ * 
  * @author michaelrabbat
  *
  */
+import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 public class UDPServer {
+
+	// Largest payload a UDP datagram can carry
+	private static final int MAX_DATAGRAM = 65507;
+
+	// Applied in place to every datagram before it is sent back
+	private static final ByteTransform TRANSFORM = ByteTransform.UPPER_CASE;
+
+	// Looked up once so that recording is only an add per packet
+	private static final Metrics METRICS = Metrics.forComponent("UDPServer");
+	private static final LongAdder PACKETS_IN = METRICS.counter("packetsIn");
+	private static final LongAdder PACKETS_OUT = METRICS.counter("packetsOut");
+	private static final LongAdder BYTES_IN = METRICS.counter("bytesIn");
+	private static final LongAdder BYTES_OUT = METRICS.counter("bytesOut");
+	private static final LongAdder ERRORS = METRICS.counter("errors");
+	private static final LatencyHistogram PACKET_BYTES = METRICS.histogram("packetBytes");
+	private static final LatencyHistogram SERVICE_NANOS = METRICS.histogram("serviceNanos");
+
 	public static void main(String args[]) throws Exception
 	{
-		// Create a UDP socket on port 9876
-		DatagramSocket serverSocket = new DatagramSocket(9876);
+		int serverPort = 9876;
+		int workers = 0;
+		InetAddress bindAddress = null;
+		List<String> zoneFiles = new ArrayList<String>();
+
+		// Optional switches: -p port, -a bind address, -w number of receive workers, -z zone file to serve
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-p") && i + 1 < args.length) {
+				serverPort = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-a") && i + 1 < args.length) {
+				bindAddress = InetAddress.getByName(args[++i]);
+			} else if (args[i].equals("-w") && i + 1 < args.length) {
+				workers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-z") && i + 1 < args.length) {
+				zoneFiles.add(args[++i]);
+			} else {
+				System.out.println("Usage: java UDPServer [-p port] [-a address] [-w workers] [-z zonefile]...");
+				System.exit(1);
+			}
+		}
+
+		Metrics.startDump();
+
+		DnsAuthority authority = null;
+		if (!zoneFiles.isEmpty()) {
+			long loadStart = System.nanoTime();
+			authority = DnsAuthority.load(zoneFiles);
+			Log.info("Loaded " + authority.getNames() + " names, " + authority.getRecords() + " records and "
+					+ authority.getResponses() + " precomputed responses in {} ms",
+					(System.nanoTime() - loadStart) / 1000000);
+			workers = Math.max(workers, 1);
+		}
+
+		if (workers > 0) {
+			serveParallel(new InetSocketAddress(bindAddress, serverPort), workers, authority);
+			return;
+		}
+
+		// Create a UDP socket on the port (9876 by default)
+		DatagramSocket serverSocket = new DatagramSocket(serverPort, bindAddress);
 		
-		// Allocate space for the received and response messages 
+		// Allocate space for the received message, which is also sent back
 		byte[] receiveData = new byte[1024];
-		byte[] sendData = new byte[1024];
+		ByteBuffer message = ByteBuffer.wrap(receiveData);
+		
+		// One packet object, reused for receiving and sending
+		DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
 		
 		// Enter an infinite loop
 		while (true)
 		{
-			// Allocate space to receive an incoming packet
-			DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
+			// Make the whole buffer available to the next packet
+			receivePacket.setData(receiveData, 0, receiveData.length);
 			
 			// Receive a packet from the client
 			// This call blocks until a packet is received
 			serverSocket.receive(receivePacket);
 			
 			// If we get here, then we received a packet
-			System.out.println("Packet received...");
+			long receivedAt = System.nanoTime();
+			Log.info("Packet received...");
 
-			String sentence = new String(receivePacket.getData());
-			System.out.println("From client: " + sentence);
-
-			// Grab the sender's IP address and port
-			InetAddress ipAddress = receivePacket.getAddress();
-			int port = receivePacket.getPort();
+			// Convert the sentence to all caps, in place and only the bytes that were received
+			int length = receivePacket.getLength();
+			recordReceived(length);
+			message.limit(length).position(0);
+			TRANSFORM.apply(message);
 			
+			// Send the same bytes back to the sender's IP address and port,
+			// which the received packet still holds
+			receivePacket.setData(receiveData, 0, length);
+			try {
+				serverSocket.send(receivePacket);
+			} catch (IOException e) {
+				ERRORS.increment();
+				continue;
+			}
+			recordSent(length, receivedAt);
+		}
+	}
+
+	private static void recordReceived(int length) {
+		PACKETS_IN.increment();
+		BYTES_IN.add(length);
+		PACKET_BYTES.record(length);
+	}
+
+	private static void recordSent(int length, long receivedAt) {
+		PACKETS_OUT.increment();
+		BYTES_OUT.add(length);
+		SERVICE_NANOS.record(System.nanoTime() - receivedAt);
+	}
+
+	/**
+	 * Runs the given number of workers on the address and prints the number of
+	 * packets (or, with an authority, queries) served every second. Never
+	 * returns.
+	 */
+	private static void serveParallel(InetSocketAddress address, int workers, DnsAuthority authority)
+			throws IOException, InterruptedException
+	{
+		// With SO_REUSEPORT the kernel spreads datagrams over one socket per worker
+		boolean reusePort;
+		try (DatagramChannel probe = DatagramChannel.open()) {
+			reusePort = probe.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		}
+
+		DatagramChannel shared = null;
+		for (int i = 0; i < workers; i++) {
+			DatagramChannel channel;
+			if (reusePort) {
+				channel = DatagramChannel.open();
+				channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				channel.bind(address);
+			} else {
+				if (shared == null) {
+					shared = DatagramChannel.open().bind(address);
+				}
+				channel = shared;
+			}
+
+			Thread worker = new Thread(new Worker(channel, TRANSFORM, authority), "udp-worker-" + i);
+			worker.start();
+		}
+
+		Log.info("UDPServer listening on port " + address.getPort()
+				+ (address.getAddress().isAnyLocalAddress() ? "" : " of " + address.getAddress().getHostAddress())
+				+ " with " + workers + " workers ("
+				+ (reusePort ? "SO_REUSEPORT" : "shared channel") + ")");
+
+		// Report throughput once a second, only while there is traffic
+		long last = 0;
+		while (true) {
+			Thread.sleep(1000);
+			long total = PACKETS_OUT.sum();
+			if (total != last) {
+				Log.info(authority == null ? "{} packets/s" : "{} queries/s", total - last);
+				last = total;
+			}
+		}
+	}
+
+	/**
+	 * Receives datagrams on one channel, transforms them in place and sends
+	 * them back, or sends the authority's answer if there is one, without
+	 * allocating per packet beyond the sender's address.
+	 */
+	private static class Worker implements Runnable {
+		private final DatagramChannel channel;
+		private final ByteTransform transform;
+		private final DnsAuthority authority;
+
+		// Reused for every datagram this worker handles
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		private final ByteBuffer reply;
+
+		private Worker(DatagramChannel channel, ByteTransform transform, DnsAuthority authority) {
+			this.channel = channel;
+			this.transform = transform;
+			this.authority = authority;
+			this.reply = authority == null ? null : ByteBuffer.allocateDirect(MAX_DATAGRAM);
+		}
+
+		public void run() {
+			while (true) {
+				// A failed receive or send costs one packet, as in the single-threaded loop
+				try {
+					serveOne();
+				} catch (ClosedChannelException e) {
+					Log.error("Worker {} stopped: {}", Thread.currentThread().getName(), e);
+					return;
+				} catch (IOException | RuntimeException e) {
+					ERRORS.increment();
+				}
+			}
+		}
+
+		private void serveOne() throws IOException {
+			// Blocks until a packet is received
+			buffer.clear();
+			SocketAddress client = channel.receive(buffer);
+			long receivedAt = System.nanoTime();
+			buffer.flip();
+			int length = buffer.remaining();
+			recordReceived(length);
+
+			if (authority != null) {
+				// Copy the precomputed answer, patched for this query, and send it
+				reply.clear();
+				if (!authority.respond(buffer, reply)) {
+					return;
+				}
+				reply.flip();
+				int replyLength = reply.remaining();
+				channel.send(reply, client);
+				recordSent(replyLength, receivedAt);
+				return;
+			}
+
 			// Convert the sentence to all caps
-			String capitalizedSentence = sentence.toUpperCase();
-			
-			// Convert the String to a byte array
-			sendData = capitalizedSentence.getBytes();
-			
-			// Make the UDP packet with the response message
-			DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, ipAddress, port);
-			
-			// Send the UDP packet back to the client
-			serverSocket.send(sendPacket);
+			transform.apply(buffer);
+
+			// Send the same bytes back to the client
+			channel.send(buffer, client);
+			recordSent(length, receivedAt);
 		}
 	}
 }